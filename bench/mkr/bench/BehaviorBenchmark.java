@@ -0,0 +1,98 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mkr.MethodTargetBuild;
+import mkr.build.Behavior;
+import mkr.build.Logger;
+import mkr.build.controller.Loggers;
+
+/**
+ * Measures {@link Behavior#as(Class)} on stacks of different depths,
+ * finding an interface implemented by the top or only by the bottom behavior,
+ * and on the controller stack of a real build
+ *
+ * @author gilesjb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BehaviorBenchmark {
+
+	@Param({"1", "4", "16", "64"})
+	public int depth;
+
+	private Behavior stack;
+	private MethodTargetBuild build;
+
+	private static class Layer extends Behavior implements Runnable {
+		public void run() {}
+	}
+
+	private static class Bottom extends Layer implements Loggers {
+		public Logger error() {
+			return null;
+		}
+
+		public Logger warn() {
+			return null;
+		}
+
+		public Logger info() {
+			return null;
+		}
+
+		public Logger verbose() {
+			return null;
+		}
+	}
+
+	@Setup public void setUp() {
+		stack = new Bottom();
+		for (int i = 1; i < depth; i++) stack = new Layer().overrides(stack);
+		build = new MethodTargetBuild();
+		SyntheticBuild.quiet(build);
+	}
+
+	@Benchmark public Runnable asTop() {
+		return stack.as(Runnable.class);
+	}
+
+	@Benchmark public Loggers asBottom() {
+		return stack.as(Loggers.class);
+	}
+
+	@Benchmark public Loggers using() {
+		return build.using(Loggers.class);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mkr.Dir;
+
+/**
+ * Measures a complete traversal with {@link Dir#children(Dir.TraversalOrder)}
+ * of a generated directory tree, in each traversal order.
+ * Each directory of the tree holds up to {@link #FILES} files and {@link #DIRS} subdirectories
+ *
+ * @author gilesjb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DirBenchmark {
+
+	static final int FILES = 10, DIRS = 3;
+
+	@Param({"100", "1000", "10000"})
+	public int files;
+
+	@Param({"DEPTH_FIRST", "PARENT_FIRST", "BREADTH_FIRST"})
+	public String order;
+
+	private Dir root;
+	private Dir.TraversalOrder traversal;
+
+	@Setup public void setUp() throws Exception {
+		traversal = (Dir.TraversalOrder) Dir.class.getField(order).get(null);
+		root = Dir.valueOf(Files.createTempDirectory("mkr-bench").toFile());
+
+		LinkedList<Dir> agenda = new LinkedList<Dir>();
+		agenda.add(root);
+		for (int created = 0, n = 0; created < files; n++) {
+			Dir dir = agenda.removeFirst();
+			for (int i = 0; i < FILES && created < files; i++, created++) {
+				if (!dir.file("f" + i + ".txt").createNewFile()) throw new IOException("Could not create file in " + dir);
+			}
+			for (int i = 0; i < DIRS; i++) {
+				Dir sub = dir.subDir("d" + n + "-" + i);
+				if (!sub.mkdir()) throw new IOException("Could not create " + sub);
+				agenda.add(sub);
+			}
+		}
+	}
+
+	@TearDown public void tearDown() {
+		root.deleteAll();
+	}
+
+	@Benchmark public int children() {
+		int count = 0;
+		for (@SuppressWarnings("unused") File file : root.children(traversal)) count++;
+		return count;
+	}
+}
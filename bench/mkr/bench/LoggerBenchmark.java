@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mkr.MethodTargetBuild;
+import mkr.build.Logger;
+import mkr.build.controller.Loggers;
+
+/**
+ * Measures {@link Logger#log(String)} with the logger enabled and disabled,
+ * from several threads at once, and through a build's controller as targets do
+ *
+ * @author gilesjb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoggerBenchmark {
+
+	private final Logger enabled = new Logger() {
+		protected void write(String msg) {}
+	};
+
+	private final Logger disabled = new Logger() {
+		protected void write(String msg) {}
+	}.enabled(false);
+
+	private MethodTargetBuild build;
+
+	@Setup public void setUp() {
+		build = new MethodTargetBuild();
+		SyntheticBuild.quiet(build);
+	}
+
+	@Benchmark public Logger enabled() {
+		return enabled.log("message");
+	}
+
+	@Benchmark public Logger disabled() {
+		return disabled.log("message");
+	}
+
+	@Benchmark @Threads(4) public Logger contended() {
+		return enabled.log("message");
+	}
+
+	@Benchmark public Logger controller() {
+		return build.using(Loggers.class).info().log("message");
+	}
+}
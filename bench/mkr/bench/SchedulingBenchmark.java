@@ -0,0 +1,74 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mkr.MethodTargetBuild;
+import mkr.TargetBuild;
+import mkr.build.controller.Parameterized;
+
+/**
+ * Measures the overhead of {@link TargetBuild#buildTarget(String)} on builds whose targets do nothing:
+ * ordering the dependency graph, dispatching target events and running the targets on the job threads.
+ * The build's targets are found once, so the reflection in <code>getTargets</code> is not included
+ *
+ * @author gilesjb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchedulingBenchmark {
+
+	@Param({"100", "1000", "5000"})
+	public int size;
+
+	@Param({"deep", "wide"})
+	public String shape;
+
+	@Param({"1", "4"})
+	public int jobs;
+
+	private Class<? extends MethodTargetBuild> type;
+
+	@Setup public void setUp() throws Exception {
+		type = SyntheticBuild.generate(size, shape);
+		SyntheticBuild.reuseTargets(type, true);
+		SyntheticBuild.quiet(type.newInstance());
+	}
+
+	@Benchmark public TargetBuild buildTarget() throws Exception {
+		MethodTargetBuild build = type.newInstance();
+		if (jobs > 1) build.using(Parameterized.class).parameters(build, new String[] {"-jobs", String.valueOf(jobs)});
+		build.buildTarget(TargetBuild.DEFAULT_TARGET);
+		return build;
+	}
+}
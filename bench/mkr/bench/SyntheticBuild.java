@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import mkr.Build;
+import mkr.Dir;
+import mkr.MethodTargetBuild;
+import mkr.build.controller.Loggers;
+
+/**
+ * Generates and compiles build classes with many target methods, for benchmarking.
+ * <p>
+ * A build of size n has target methods <code>make0</code> to <code>make(n-1)</code>
+ * and a default target <code>make</code>, in one of these shapes:
+ * <dl>
+ * <dt>deep</dt><dd>each target depends on the one before it, and the default target on the last</dd>
+ * <dt>wide</dt><dd>the default target depends on all the others, which have no dependencies</dd>
+ * </dl>
+ * A generated class keeps the targets found by its first instance,
+ * so that later instances can be built without repeating the reflection
+ * when {@link #REUSE_TARGETS} is set.
+ *
+ * @author gilesjb
+ */
+public class SyntheticBuild {
+
+	/**
+	 * The name of the static field that makes instances of a generated class reuse their targets
+	 */
+	public static final String REUSE_TARGETS = "reuseTargets";
+
+	/**
+	 * Generates and loads a build class
+	 * @param size the number of targets, not including the default target
+	 * @param shape <code>deep</code> or <code>wide</code>
+	 * @return the build class
+	 * @throws IOException if the class cannot be compiled
+	 */
+	public static Class<? extends MethodTargetBuild> generate(int size, String shape) throws IOException {
+		String name = "Synthetic" + shape.substring(0, 1).toUpperCase() + shape.substring(1) + size;
+		StringBuilder src = new StringBuilder();
+		src.append("public class ").append(name).append(" extends mkr.MethodTargetBuild {\n");
+		src.append("\tpublic static boolean ").append(REUSE_TARGETS).append(" = false;\n");
+		src.append("\tprivate static java.util.Map<String, mkr.build.controller.BuildTarget> targets = null;\n\n");
+		src.append("\t@Override public java.util.Map<String, mkr.build.controller.BuildTarget> getTargets() {\n");
+		src.append("\t\tif (!").append(REUSE_TARGETS).append(") return super.getTargets();\n");
+		src.append("\t\tif (targets == null) targets = super.getTargets();\n");
+		src.append("\t\treturn new java.util.HashMap<String, mkr.build.controller.BuildTarget>(targets);\n");
+		src.append("\t}\n\n");
+
+		StringBuilder all = new StringBuilder();
+		for (int i = 0; i < size; i++) {
+			if (shape.equals("deep") && i > 0) src.append("\t@Depends(\"").append(i - 1).append("\") ");
+			src.append("\tvoid make").append(i).append("() {}\n");
+			all.append(i == 0? "" : ",").append(i);
+		}
+		if (shape.equals("deep")) {
+			src.append("\t@Depends(\"").append(size - 1).append("\") void make() {}\n");
+		} else if (shape.equals("wide")) {
+			src.append("\t@Depends(\"").append(all).append("\") void make() {}\n");
+		} else {
+			throw new IllegalArgumentException("Unknown shape: " + shape);
+		}
+		src.append("}\n");
+
+		Dir dir = Dir.valueOf(Files.createTempDirectory("mkr-bench").toFile());
+		File source = dir.file(name + ".java");
+		Writer out = new FileWriter(source);
+		try {
+			out.write(src.toString());
+		} finally {
+			out.close();
+		}
+
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		int result = javac.run(null, null, null, "-d", dir.getPath(), "-cp", System.getProperty("java.class.path"),
+				"-nowarn", "-proc:none", source.getPath());
+		if (result != 0) throw new IOException("Could not compile " + source);
+
+		ClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, SyntheticBuild.class.getClassLoader());
+		try {
+			return Class.forName(name, true, loader).asSubclass(MethodTargetBuild.class);
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		} finally {
+			dir.deleteAll();
+		}
+	}
+
+	/**
+	 * Disables the logging of a build's controller, except for errors,
+	 * so that benchmarks do not measure console output
+	 * @param build the build
+	 */
+	public static void quiet(Build build) {
+		Loggers loggers = build.using(Loggers.class);
+		loggers.warn().enabled(false);
+		loggers.info().enabled(false);
+		loggers.verbose().enabled(false);
+	}
+
+	/**
+	 * Sets whether instances of a generated class reuse the targets found by the first instance
+	 * @param type a generated build class
+	 * @param reuse true to reuse the targets
+	 */
+	public static void reuseTargets(Class<? extends MethodTargetBuild> type, boolean reuse) {
+		try {
+			type.getField(REUSE_TARGETS).setBoolean(null, reuse);
+		} catch (Exception e) {
+			throw new IllegalArgumentException("Not a synthetic build: " + type, e);
+		}
+	}
+}
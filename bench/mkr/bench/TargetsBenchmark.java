@@ -0,0 +1,65 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.bench;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import mkr.MethodTargetBuild;
+import mkr.build.controller.BuildTarget;
+
+/**
+ * Measures how long {@link MethodTargetBuild#getTargets()} takes to find the target methods of a build by reflection
+ *
+ * @author gilesjb
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetsBenchmark {
+
+	@Param({"100", "1000", "5000"})
+	public int size;
+
+	@Param({"deep", "wide"})
+	public String shape;
+
+	private MethodTargetBuild build;
+
+	@Setup public void setUp() throws Exception {
+		build = SyntheticBuild.generate(size, shape).newInstance();
+		SyntheticBuild.quiet(build);
+	}
+
+	@Benchmark public Map<String, BuildTarget> getTargets() {
+		return build.getTargets();
+	}
+}
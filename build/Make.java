@@ -23,6 +23,7 @@
  * <dt>jar</dt><dd>Builds mkr.jar file</dd>
  * <dt>docs</dt><dd>Creates javadocs</dd>
  * <dt>dist</dt><dd>Creates a distribution</dd>
+ * <dt>bench</dt><dd>Runs the JMH benchmarks in bench</dd>
  * <dt>tidy</dt><dd>Deletes temporary files</dd>
  * <dt>clean</dt><dd>Deletes all targets</dd>
  * </dl>
@@ -36,50 +37,42 @@ public class Make extends mkr.AntBuild {
 		targetClass = target.subDir("class"),
 		targetDist = target.subDir("dist"),
 		targetDocs = targetDist.subDir("docs"),
-		targetJar = target.subDir("jar");
+		targetJar = target.subDir("jar"),
+		targetBench = target.subDir("bench"),
+		bench = dir("bench"),
+		benchLib = bench.subDir("lib"),
+		benchResults = bench.subDir("results");
 	String 
-		jdkVer = "1.5",
+		jdkVer = "1.8",
 		mkrVer = "0.9";
 	
 	/**
-	 * Default target, builds distribution
+	 * Default target, builds distribution then tidies up.
+	 * Tidying is started here rather than listed with dist, since listed targets may run at the same time
 	 */
-	@Depends("dist,tidy") void
+	@Depends("dist") void
 	make() {
+		buildTarget("tidy");
 		task(echo).message("Completed default build").run();
 	}
 	
-	void
-	makeCompile() {
-		task(mkdir).dir(targetClass).run();
-		task(javac)
-			.destdir(targetClass).excludes("*.java").source(jdkVer).target(jdkVer)
-			.beginSrc()
-				.location(build).end()
-			.beginClasspath()
-				.beginFileset()
-					.dir(build)
-					.includes("ant*.jar")
-					.end()
-				.end()
+	@Inputs("build/**/*.java,build/*.jar") @Outputs("target/class") void
+	makeCompile() throws java.io.IOException {
+		int compiled = mkr.Jdk.compile(build, targetClass)
+			.exclude("*.java")
+			.classpath(build.matching("*.jar").toArray(new java.io.File[0]))
+			.options("-source", jdkVer, "-target", jdkVer, "-nowarn")
 			.run();
+		using(mkr.build.controller.Loggers.class).info().log("Compiled " + compiled + " source files to " + targetClass);
 	}
 	
-	@Depends("compile") void
-	makeJar() {
-		task(mkdir).dir(targetJar).run();
-		task(jar)
-			.destFile(targetJar.file(String.format("mkr-%s.jar", mkrVer)))
-			.beginFileset()
-				.dir(build)
-				.excludes("*.java")
-				.excludes("**.class")
-				.end()
-			.beginFileset()
-				.dir(targetClass)
-				.excludes("*.class")
-				.end()
-			.run();
+	@Depends("compile") @Inputs("build/mkr,build/*.jar,target/class") @Outputs("target/jar") void
+	makeJar() throws java.io.IOException {
+		mkr.Jdk.jar(targetJar.file(String.format("mkr-%s.jar", mkrVer)))
+			.add(build.select().exclude("*.java", "**.class", ".mkr/**"))
+			.add(targetClass.select().exclude("*.class"))
+			.reproducible()
+			.write();
 	}
 	
 	void
@@ -88,7 +81,7 @@ public class Make extends mkr.AntBuild {
 	}
 	
 	@Depends("jar,docs") void
-	makeDist() {
+	makeDist() throws java.io.IOException {
 		task(copy)
 			.todir(targetDist)
 			.beginFileset()
@@ -104,15 +97,13 @@ public class Make extends mkr.AntBuild {
 				.dir(targetJar)
 				.end()
 			.run();
-		task(zip)
-			.destFile(target.file(String.format("mkr-%s.dist.zip", mkrVer)))
-			.beginFileset()
-				.dir(targetDist)
-				.end()
-			.run();
+		mkr.Jdk.zip(target.file(String.format("mkr-%s.dist.zip", mkrVer)))
+			.add(targetDist)
+			.reproducible()
+			.write();
 	}
 	
-	@Depends("distDir") void
+	@Depends("distDir") @Inputs("build/**/*.java") @Outputs("target/dist/docs") void
 	makeDocs() {
 		task(javadoc)
 			.destdir(targetDocs).packagenames("mkr.*").failonerror(true)
@@ -123,6 +114,38 @@ public class Make extends mkr.AntBuild {
 			.run();
 	}
 	
+	/**
+	 * Runs the JMH benchmarks and saves the results in bench/results.
+	 * The JMH jars (jmh-core, jmh-generator-annprocess, jopt-simple and commons-math3) must be in bench/lib
+	 */
+	@Depends("compile") void
+	makeBench() {
+		java.util.List<java.io.File> jmh = benchLib.matching("*.jar");
+		if (jmh.isEmpty()) throw new IllegalStateException("No JMH jars found in " + benchLib);
+		jmh.addAll(build.matching("*.jar"));
+		StringBuilder classpath = new StringBuilder(targetClass.getPath());
+		for (java.io.File jar : jmh) classpath.append(System.getProperty("path.separator")).append(jar);
+		
+		targetBench.deleteAll();
+		targetBench.mkdirs();
+		java.util.List<String> args = new java.util.ArrayList<String>();
+		for (String arg : new String[] {"-d", targetBench.getPath(), "-cp", classpath.toString(),
+				"-source", jdkVer, "-target", jdkVer, "-nowarn"}) args.add(arg);
+		for (java.io.File source : bench.matching("**/*.java")) args.add(source.getPath());
+		mkr.Jdk.javac(args);
+		
+		task(mkdir).dir(benchResults).run();
+		task(java)
+			.classname("org.openjdk.jmh.Main").fork(true).failonerror(true)
+			.beginClasspath()
+				.location(targetBench)
+				.path(classpath.toString())
+				.end()
+			.beginArg().line("-rf json -rff").end()
+			.beginArg().file(benchResults.file(String.format("jmh-%tY%<tm%<td-%<tH%<tM%<tS.json", new java.util.Date()))).end()
+			.run();
+	}
+	
 	void
 	makeTidy() {
 		task(delete)
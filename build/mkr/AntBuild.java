@@ -15,6 +15,9 @@
  */
 package mkr;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import mkr.build.Behavior;
 import mkr.build.controller.BuildEvents;
 import mkr.build.controller.BuildTarget;
@@ -88,12 +91,14 @@ public abstract class AntBuild extends MethodTargetBuild implements Tasks {
 	/**
 	 * Controller for Ant build.
 	 * Sets up Ant <code>Project</code> and <code>BuildLogger</code>,
-	 * and fires appropriate events
+	 * and fires appropriate events.
+	 * Targets may be running on several threads,
+	 * so each has its own <code>AntTarget</code>
 	 *
 	 */
 	private static class Controller extends Behavior implements Runner, BuildEvents, TargetEvents {
 		
-		AntTarget current;
+		final Map<BuildTarget, AntTarget> current = new HashMap<BuildTarget, AntTarget>();
 		
 		public void run(Object build, final Runner.Callback callback, String... args) {
 			parent(Runner.class).run(build, new Runner.Callback() {
@@ -116,11 +121,15 @@ public abstract class AntBuild extends MethodTargetBuild implements Tasks {
 		}
 
 		public void targetStarting(BuildTarget bt) {
-			current = ant.startTarget(bt.name());
+			synchronized (ant) {
+				current.put(bt, ant.startTarget(bt.name()));
+			}
 		}
 
 		public void targetFinished(BuildTarget bt) {
-			current.finished();
+			synchronized (ant) {
+				current.remove(bt).finished();
+			}
 		}
 		
 		public void buildStarting(Object build) {
@@ -0,0 +1,572 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a zip or jar file, compressing the entries on several threads.
+ * Entries are written in order as they are compressed,
+ * and file data that is stored rather than compressed is transferred straight from the file's channel.
+ * <p>
+ * Files with the extension of a compressed format, such as <code>.jar</code> or <code>.png</code>,
+ * and files that do not get smaller when deflated, are stored without compression.
+ * ZIP64 records are written when the archive or one of its entries needs them.
+ * <pre>
+ * Jdk.jar(targetJar.file("app.jar"))
+ *     .add(targetClass)
+ *     .add("lib", dir("lib").select("*.jar"))
+ *     .reproducible()
+ *     .write();
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class Archive {
+
+	/**
+	 * Entries of at most this many bytes are compressed in memory; larger ones to temporary files
+	 */
+	private static final int IN_MEMORY = 1024 * 1024;
+
+	private static final Set<String> COMPRESSED = new HashSet<String>(Arrays.asList(
+			"zip", "jar", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "z", "lz", "lzma", "zst",
+			"png", "jpg", "jpeg", "gif", "webp", "mp3", "mp4", "ogg", "avi", "mov", "pdf"));
+
+	/**
+	 * The modification time given to every entry of a reproducible archive, 1980-01-01 00:00
+	 */
+	private static final long FIXED_DOS_TIME = (1 << 21) | (1 << 16);
+
+	private static final long ZIP64 = 0xFFFFFFFFL;
+
+	private final File dest;
+	private final Map<String, File> files = new LinkedHashMap<String, File>();
+	private Manifest manifest = null;
+	private int level = Deflater.DEFAULT_COMPRESSION;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean reproducible = false;
+
+	/**
+	 * Creates a writer for a zip file
+	 * @param dest the file to write
+	 */
+	public Archive(File dest) {
+		this.dest = dest;
+	}
+
+	/**
+	 * Adds all the files and directories beneath a directory, with paths relative to it
+	 * @param dir the directory
+	 * @return this Archive
+	 */
+	public Archive add(Dir dir) {
+		return add("", dir.select());
+	}
+
+	/**
+	 * Adds the selected files and directories, with paths relative to the selection's directory
+	 * @param selection the selection
+	 * @return this Archive
+	 * @throws UncheckedIOException if a directory cannot be read
+	 */
+	public Archive add(Selection selection) throws UncheckedIOException {
+		return add("", selection);
+	}
+
+	/**
+	 * Adds the selected files and directories beneath a directory in the archive
+	 * @param prefix the archive directory, eg <code>lib</code>
+	 * @param selection the selection
+	 * @return this Archive
+	 * @throws UncheckedIOException if a directory cannot be read
+	 * @throws IllegalArgumentException if two different files are added with the same path
+	 */
+	public Archive add(String prefix, Selection selection) throws UncheckedIOException, IllegalArgumentException {
+		final String base = prefix.isEmpty() || prefix.endsWith("/")? prefix : prefix + '/';
+		final Path root = selection.root();
+		selection.forEach(new Selection.Action() {
+			public void apply(Path path, BasicFileAttributes attrs) {
+				String relative = root.relativize(path).toString().replace(File.separatorChar, '/');
+				if (relative.isEmpty() && base.isEmpty()) return;
+				if (attrs.isDirectory()) {
+					entry(base + relative + (relative.isEmpty()? "" : "/"), null);
+				} else {
+					entry(base + relative, path.toFile());
+				}
+			}
+		});
+		return this;
+	}
+
+	/**
+	 * Adds a file with a path in the archive
+	 * @param name the path in the archive, using <code>/</code> as the separator
+	 * @param file the file
+	 * @return this Archive
+	 * @throws IllegalArgumentException if a different file has been added with the same path
+	 */
+	public Archive add(String name, File file) throws IllegalArgumentException {
+		entry(name, file);
+		return this;
+	}
+
+	private synchronized void entry(String name, File file) {
+		if (files.containsKey(name)) {
+			File existing = files.get(name);
+			if (existing == null? file == null : existing.equals(file)) return;
+			throw new IllegalArgumentException("Duplicate archive entry: " + name);
+		}
+		files.put(name, file);
+	}
+
+	/**
+	 * Makes this a jar file by writing a manifest as its first entry.
+	 * <code>Manifest-Version</code> and <code>Created-By</code> are added if they are missing
+	 * @param manifest the manifest
+	 * @return this Archive
+	 */
+	public Archive manifest(Manifest manifest) {
+		this.manifest = manifest;
+		Attributes main = manifest.getMainAttributes();
+		if (!main.containsKey(Attributes.Name.MANIFEST_VERSION)) main.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		if (!main.containsKey(new Attributes.Name("Created-By"))) main.putValue("Created-By", "mkr");
+		return this;
+	}
+
+	/**
+	 * Sets the deflate level
+	 * @param level 0 to store every entry, to 9 for the best compression
+	 * @return this Archive
+	 */
+	public Archive level(int level) {
+		this.level = level;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads that compress entries
+	 * @param threads the number of threads
+	 * @return this Archive
+	 */
+	public Archive threads(int threads) {
+		this.threads = Math.max(1, threads);
+		return this;
+	}
+
+	/**
+	 * Makes the archive depend only on the names and contents of its entries,
+	 * by sorting the entries and giving them all the same modification time
+	 * @return this Archive
+	 */
+	public Archive reproducible() {
+		this.reproducible = true;
+		return this;
+	}
+
+	/**
+	 * An entry's data, compressed or ready to be transferred from its file
+	 */
+	private static class Data {
+		final String name;
+		final long time;
+		long crc = 0, size = 0, compressedSize = 0, offset;
+		boolean deflated = false;
+		byte[] bytes = null;
+		File file = null;
+		boolean temporary = false;
+
+		Data(String name, long time) {
+			this.name = name;
+			this.time = time;
+		}
+
+		boolean zip64() {
+			return size >= ZIP64 || compressedSize >= ZIP64 || offset >= ZIP64;
+		}
+	}
+
+	/**
+	 * Writes the archive to a temporary file beside the destination, then renames it into place,
+	 * so a file that is hard-linked elsewhere is replaced rather than rewritten,
+	 * and a failed write leaves the previous archive intact
+	 * @throws IOException if a file cannot be read or the archive cannot be written
+	 */
+	public void write() throws IOException {
+		List<String> names = new ArrayList<String>(files.keySet());
+		if (reproducible) Collections.sort(names);
+		if (manifest != null) {
+			names.remove("META-INF/");
+			names.remove(JarFile.MANIFEST_NAME);
+			names.addAll(0, Arrays.asList("META-INF/", JarFile.MANIFEST_NAME));
+		}
+
+		File dir = dest.getAbsoluteFile().getParentFile();
+		dir.mkdirs();
+		File temp = File.createTempFile("." + dest.getName(), ".tmp", dir);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			int count = 0;
+
+			public synchronized Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "mkr-archive-" + ++count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		LinkedList<Future<Data>> pending = new LinkedList<Future<Data>>();
+		List<Data> written = new ArrayList<Data>();
+		boolean ok = false;
+		RandomAccessFile raf = new RandomAccessFile(temp, "rw");
+		try {
+			FileChannel out = raf.getChannel();
+			int window = threads * 4;
+			for (int i = 0; i < names.size() || !pending.isEmpty(); ) {
+				while (i < names.size() && pending.size() < window) pending.add(pool.submit(task(names.get(i++))));
+				Data data = get(pending.removeFirst());
+				try {
+					data.offset = out.position();
+					write(out, data);
+				} finally {
+					if (data.temporary) data.file.delete();
+				}
+				data.bytes = null;
+				written.add(data);
+			}
+			writeDirectory(out, written);
+			raf.close();
+			move(temp, dest);
+			ok = true;
+		} finally {
+			List<Runnable> queued = finish(pool);
+			for (Future<Data> future : pending) {
+				if (queued.contains(future) || !future.isDone()) continue;
+				try {
+					Data data = future.get();
+					if (data.temporary) data.file.delete();
+				} catch (Exception e) {}
+			}
+			raf.close();
+			if (!ok) temp.delete();
+		}
+	}
+
+	/**
+	 * Stops the compressing threads, waiting for the entries already being compressed
+	 * so that their temporary files can be deleted
+	 * @return the tasks that were never started
+	 */
+	private static List<Runnable> finish(ExecutorService pool) {
+		List<Runnable> queued = pool.shutdownNow();
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return queued;
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static Data get(Future<Data> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing archive", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private Callable<Data> task(final String name) {
+		return new Callable<Data>() {
+			public Data call() throws IOException {
+				File file = files.get(name);
+				Data data = new Data(name, reproducible? FIXED_DOS_TIME : dosTime(
+						file == null? System.currentTimeMillis() : file.lastModified()));
+				if (name.equals(JarFile.MANIFEST_NAME) && manifest != null) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					manifest.write(bytes);
+					compress(data, bytes.toByteArray());
+				} else if (file != null) {
+					compress(data, file);
+				}
+				return data;
+			}
+		};
+	}
+
+	private void compress(Data data, byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, 0, bytes.length);
+		data.crc = crc.getValue();
+		data.size = data.compressedSize = bytes.length;
+		data.bytes = bytes;
+		if (level == 0 || bytes.length == 0 || COMPRESSED.contains(extension(data.name))) return;
+
+		Deflater deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 2 + 64);
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished() && out.size() < bytes.length) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+			if (deflater.finished() && out.size() < bytes.length) {
+				data.bytes = out.toByteArray();
+				data.compressedSize = data.bytes.length;
+				data.deflated = true;
+			}
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void compress(Data data, File file) throws IOException {
+		long length = file.length();
+		if (length <= IN_MEMORY) {
+			compress(data, Files.readAllBytes(file.toPath()));
+			return;
+		}
+
+		data.file = file;
+		data.size = data.compressedSize = length;
+		if (level == 0 || COMPRESSED.contains(extension(data.name))) {
+			data.crc = crc(file);
+			return;
+		}
+
+		File temp = File.createTempFile(".mkr-archive", "", dest.getAbsoluteFile().getParentFile());
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(level, true);
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp), deflater, 65536);
+				try {
+					byte[] buffer = new byte[65536];
+					for (int n; (n = in.read(buffer)) > 0; ) {
+						crc.update(buffer, 0, n);
+						out.write(buffer, 0, n);
+					}
+				} finally {
+					out.close();
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			temp.delete();
+			throw e;
+		} finally {
+			deflater.end();
+		}
+		data.crc = crc.getValue();
+		if (temp.length() < length) {
+			data.file = temp;
+			data.temporary = true;
+			data.compressedSize = temp.length();
+			data.deflated = true;
+		} else {
+			temp.delete();
+		}
+	}
+
+	private static long crc(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			for (int n; (n = in.read(buffer)) > 0; ) crc.update(buffer, 0, n);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	private static String extension(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 || dot < name.lastIndexOf('/')? "" : name.substring(dot + 1).toLowerCase();
+	}
+
+	/**
+	 * Writes an entry's local header and data
+	 */
+	private static void write(FileChannel out, Data data) throws IOException {
+		byte[] name = data.name.getBytes("UTF-8");
+		boolean zip64 = data.size >= ZIP64 || data.compressedSize >= ZIP64;
+		ByteBuffer header = buffer(30 + name.length + (zip64? 20 : 0));
+		header.putInt(0x04034b50);
+		header.putShort((short) (zip64? 45 : 20));
+		header.putShort((short) 0x0800);
+		header.putShort((short) (data.deflated? 8 : 0));
+		header.putInt((int) data.time);
+		header.putInt((int) data.crc);
+		header.putInt((int) (zip64? ZIP64 : data.compressedSize));
+		header.putInt((int) (zip64? ZIP64 : data.size));
+		header.putShort((short) name.length);
+		header.putShort((short) (zip64? 20 : 0));
+		header.put(name);
+		if (zip64) {
+			header.putShort((short) 0x0001).putShort((short) 16).putLong(data.size).putLong(data.compressedSize);
+		}
+		header.flip();
+		writeFully(out, header);
+
+		if (data.bytes != null) {
+			writeFully(out, ByteBuffer.wrap(data.bytes));
+		} else if (data.file != null) {
+			FileChannel in = new FileInputStream(data.file).getChannel();
+			try {
+				long position = 0, size = data.compressedSize;
+				while (position < size) position += in.transferTo(position, size - position, out);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Writes the central directory and the end records
+	 */
+	private static void writeDirectory(FileChannel out, List<Data> entries) throws IOException {
+		long start = out.position();
+		for (Data data : entries) {
+			byte[] name = data.name.getBytes("UTF-8");
+			boolean zip64 = data.zip64();
+			ByteBuffer header = buffer(46 + name.length + (zip64? 28 : 0));
+			header.putInt(0x02014b50);
+			header.putShort((short) (zip64? 45 : 20));
+			header.putShort((short) (zip64? 45 : 20));
+			header.putShort((short) 0x0800);
+			header.putShort((short) (data.deflated? 8 : 0));
+			header.putInt((int) data.time);
+			header.putInt((int) data.crc);
+			header.putInt((int) (zip64? ZIP64 : data.compressedSize));
+			header.putInt((int) (zip64? ZIP64 : data.size));
+			header.putShort((short) name.length);
+			header.putShort((short) (zip64? 28 : 0));
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putInt(data.name.endsWith("/")? 0x10 : 0);
+			header.putInt((int) (zip64? ZIP64 : data.offset));
+			header.put(name);
+			if (zip64) {
+				header.putShort((short) 0x0001).putShort((short) 24)
+					.putLong(data.size).putLong(data.compressedSize).putLong(data.offset);
+			}
+			header.flip();
+			writeFully(out, header);
+		}
+
+		long end = out.position(), size = end - start;
+		boolean zip64 = entries.size() >= 0xFFFF || size >= ZIP64 || start >= ZIP64;
+		if (zip64) {
+			ByteBuffer record = buffer(56 + 20);
+			record.putInt(0x06064b50).putLong(44);
+			record.putShort((short) 45).putShort((short) 45);
+			record.putInt(0).putInt(0);
+			record.putLong(entries.size()).putLong(entries.size());
+			record.putLong(size).putLong(start);
+			record.putInt(0x07064b50).putInt(0).putLong(end).putInt(1);
+			record.flip();
+			writeFully(out, record);
+		}
+		ByteBuffer record = buffer(22);
+		record.putInt(0x06054b50);
+		record.putShort((short) 0).putShort((short) 0);
+		record.putShort((short) (zip64? 0xFFFF : entries.size()));
+		record.putShort((short) (zip64? 0xFFFF : entries.size()));
+		record.putInt((int) (zip64? ZIP64 : size));
+		record.putInt((int) (zip64? ZIP64 : start));
+		record.putShort((short) 0);
+		record.flip();
+		writeFully(out, record);
+	}
+
+	private static ByteBuffer buffer(int size) {
+		return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) out.write(buffer);
+	}
+
+	/**
+	 * Converts a time to the MS-DOS format used by zip files, in the local time zone
+	 */
+	private static long dosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) return FIXED_DOS_TIME;
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+				| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	@Override public String toString() {
+		return dest.getPath();
+	}
+}
@@ -16,9 +16,10 @@
 package mkr;
 
 import java.io.File;
-import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * A derived File class that adds methods for creating child files and directories.
@@ -122,52 +123,63 @@ public class Dir extends File {
 	};
 	
 	/**
-	 * An Iterable that traverses this Dir and all children in the specified order
+	 * An Iterable that traverses this Dir and all children in the specified order.
+	 * Each directory is read when the traversal reaches it
 	 * @param order the traversal order
 	 * @return a new File Iterator
 	 */
 	public Iterable<File> children(final TraversalOrder order) {
-		return new Iterable<File>() {
-			
-			public Iterator<File> iterator() {
-				
-				return new Iterator<File>() {
-					final LinkedList<File> agenda = new LinkedList<File>();
-
-					{schedule(Dir.this);}
-					
-					public boolean hasNext() {
-						while (!agenda.isEmpty()) {
-							File head = agenda.peekFirst();
-							if (head instanceof Dir || !head.isDirectory()) return true;
-							
-							schedule(valueOf(next()));
-						}
-						return false;
-					}
-					
-					public File next() {
-						return agenda.removeFirst();
-					}
-					
-					public void remove() {
-						throw new UnsupportedOperationException();
-					}
-					
-					private void schedule(Dir dir) {
-						agenda.addFirst(dir);
-						agenda.addAll(order.expandAt(agenda.size()), Arrays.asList(dir.listFiles()));
-					}
-				};
-			}
-		};
+		return select().files(order);
+	}
+	
+	/**
+	 * A lazy stream of the paths of this Dir and all children in the specified order
+	 * @param order the traversal order
+	 * @return a sequential stream
+	 */
+	public Stream<Path> paths(TraversalOrder order) {
+		return select().stream(order);
+	}
+	
+	/**
+	 * Selects files beneath this Dir by Ant-style patterns,
+	 * for traversal or bulk operations
+	 * 
+	 * @param includes patterns of files to include; if there are none, all files are included
+	 * @return a new Selection
+	 */
+	public Selection select(String... includes) {
+		return new Selection(this, includes);
+	}
+	
+	/**
+	 * Finds the files beneath this Dir whose paths relative to it match an Ant-style pattern.
+	 * <code>?</code> and <code>*</code> match characters within a name,
+	 * and <code>**</code> matches any number of directories, eg
+	 * <pre>
+	 * dir("build").matching("**&#47;*.java")
+	 * </pre>
+	 * 
+	 * @param pattern a relative path pattern, using <code>/</code> as the separator
+	 * @return the matching files, not including directories
+	 */
+	public List<File> matching(String pattern) {
+		List<File> files = new ArrayList<File>();
+		for (File file : select(pattern).files(PARENT_FIRST)) {
+			if (!(file instanceof Dir)) files.add(file);
+		}
+		return files;
 	}
 	
 	/**
-	 * Recursively deletes this Dir and all children
+	 * Recursively deletes this Dir and all children.
+	 * Use {@link Selection#parallel()} to delete large trees on several threads:
+	 * <pre>
+	 * dir.select().parallel().delete();
+	 * </pre>
 	 */
 	public void deleteAll() {
-		for (File file : children(DEPTH_FIRST)) file.delete();
+		select().delete();
 	}
 	
 //	public static void main(String... args) {
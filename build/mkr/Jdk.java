@@ -15,7 +15,21 @@
  */
 package mkr;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
 import java.util.List;
+import java.util.Optional;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import javax.tools.Tool;
+import javax.tools.ToolProvider;
+
+import mkr.build.IncrementalCompiler;
 
 /**
  * Static methods for invoking JDK tools
@@ -24,13 +38,27 @@ import java.util.List;
  */
 public class Jdk {
 	
+	/**
+	 * Creates an incremental compilation of the Java sources beneath a directory.
+	 * Running it compiles only the sources that changed since the last run, and the sources that depend on them:
+	 * <pre>
+	 * Jdk.compile(dir("src"), dir("target/classes")).classpath(dir("lib").matching("*.jar")...).run();
+	 * </pre>
+	 * 
+	 * @param sources the source root directory
+	 * @param classes the output directory
+	 * @return the compilation
+	 */
+	public static IncrementalCompiler compile(Dir sources, Dir classes) {
+		return new IncrementalCompiler(sources, classes);
+	}
+	
 	public static void javac(List<String> args) {
 		javac(toArray(args));
 	}
 	
 	public static void javac(String... args) {
-		int result = com.sun.tools.javac.Main.compile(args);
-		if (result != 0) throw new IllegalArgumentException("javac failed, code: " + result);
+		run("javac", ToolProvider.getSystemJavaCompiler(), args);
 	}
 	
 	public static void javadoc(List<String> args) {
@@ -38,17 +66,138 @@ public class Jdk {
 	}
 	
 	public static void javadoc(String... args) {
-		int result = com.sun.tools.javadoc.Main.execute(args);
-		if (result != 0) throw new IllegalArgumentException("javadoc failed, code: " + result);
+		run("javadoc", ToolProvider.getSystemDocumentationTool(), args);
+	}
+	
+	private static void run(String name, Tool tool, String... args) {
+		if (tool == null) throw new IllegalStateException(name + " not available, mkr must be run with a JDK");
+		int result = tool.run(null, null, null, args);
+		if (result != 0) throw new IllegalArgumentException(name + " failed, code: " + result);
+	}
+	
+	/**
+	 * Creates a writer for a jar file, which compresses entries on several threads:
+	 * <pre>
+	 * Jdk.jar(targetJar.file("app.jar")).add(targetClass).reproducible().write();
+	 * </pre>
+	 * 
+	 * @param dest the jar file
+	 * @return the archive, with a default manifest
+	 */
+	public static Archive jar(File dest) {
+		return new Archive(dest).manifest(new Manifest());
+	}
+	
+	/**
+	 * Creates a writer for a zip file, which compresses entries on several threads
+	 * @param dest the zip file
+	 * @return the archive
+	 */
+	public static Archive zip(File dest) {
+		return new Archive(dest);
 	}
 	
 	public static void jar(List<String> args) {
 		jar(toArray(args));
 	}
 	
+	/**
+	 * Runs the jar tool.
+	 * Jar files are created with an {@link Archive} when the options are among <code>cvfme0M</code>,
+	 * and the JDK's jar tool is used for everything else
+	 * @param args the jar tool arguments, eg <code>cf app.jar -C target/class .</code>
+	 */
 	public static void jar(String... args) {
-		if (!new sun.tools.jar.Main(System.out, System.err, "jar").run(args))
-			throw new IllegalArgumentException("jar failed");
+		try {
+			if (args.length > 0 && createJar(args)) return;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("jar failed: " + e.getMessage(), e);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("jar failed, missing argument for options: " + args[0]);
+		}
+		
+		if (!runJarTool(args)) throw new IllegalArgumentException("jar failed");
+	}
+	
+	/**
+	 * Runs the JDK's jar tool, which is found with <code>java.util.spi.ToolProvider</code> on Java 9 and later,
+	 * and is <code>sun.tools.jar.Main</code> on Java 8
+	 * @return true if the tool succeeded
+	 */
+	private static boolean runJarTool(String... args) {
+		Class<?> provider;
+		try {
+			provider = Class.forName("java.util.spi.ToolProvider");
+		} catch (ClassNotFoundException e) {
+			provider = null;
+		}
+		try {
+			if (provider != null) {
+				Optional<?> jar = (Optional<?>) provider.getMethod("findFirst", String.class).invoke(null, "jar");
+				if (!jar.isPresent()) throw new IllegalStateException("jar not available, mkr must be run with a JDK");
+				return (Integer) provider.getMethod("run", PrintStream.class, PrintStream.class, String[].class)
+					.invoke(jar.get(), System.out, System.err, args) == 0;
+			}
+			Class<?> main = Class.forName("sun.tools.jar.Main");
+			Object jar = main.getConstructor(PrintStream.class, PrintStream.class, String.class)
+				.newInstance(System.out, System.err, "jar");
+			return (Boolean) main.getMethod("run", String[].class).invoke(jar, (Object) args);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("jar not available, mkr must be run with a JDK", e);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("jar failed: " + e.getCause(), e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("jar could not be run: " + e, e);
+		}
+	}
+	
+	/**
+	 * Creates a jar file with an Archive
+	 * @return false if the options need the JDK's jar tool
+	 */
+	private static boolean createJar(String... args) throws IOException {
+		String options = args[0].startsWith("-")? args[0].substring(1) : args[0];
+		if (!options.matches("[vfme0M]*c[vfme0M]*") || options.indexOf('f') < 0) return false;
+		
+		int next = 1;
+		File file = null;
+		Manifest manifest = new Manifest();
+		for (char option : options.toCharArray()) {
+			if (option == 'f') {
+				file = new File(args[next++]);
+			} else if (option == 'm') {
+				InputStream in = new FileInputStream(args[next++]);
+				try {
+					manifest = new Manifest(in);
+				} finally {
+					in.close();
+				}
+			} else if (option == 'e') {
+				manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, args[next++]);
+			}
+		}
+		
+		Archive archive = new Archive(file);
+		if (options.indexOf('M') < 0) archive.manifest(manifest);
+		if (options.indexOf('0') >= 0) archive.level(0);
+		for (; next < args.length; next++) {
+			File base = null;
+			if (args[next].equals("-C")) {
+				base = new File(args[++next]);
+				next++;
+			}
+			String name = args[next].replace(File.separatorChar, '/').replaceFirst("^(\\./)+", "");
+			if (name.equals(".")) name = "";
+			File entry = new File(base, args[next]);
+			if (entry.isDirectory()) {
+				archive.add(name, Dir.valueOf(entry).select());
+			} else {
+				archive.add(name, entry);
+			}
+		}
+		archive.write();
+		return true;
 	}
 	
 	private static String[] toArray(List<String> list) {
@@ -26,6 +26,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 import mkr.build.controller.BuildTarget;
+import mkr.build.controller.FileTarget;
 import mkr.build.controller.Loggers;
 
 /**
@@ -55,11 +56,42 @@ public class MethodTargetBuild extends TargetBuild {
 		 */
 		String value();
 	}
+	
+	/**
+	 * Target method annotation that indicates the files the target reads.
+	 * A target that declares its files is skipped if neither they
+	 * nor its dependencies have changed since it was last built.
+	 */
+	@Documented
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public @interface Inputs {
+		/**
+		 * Paths of files, directories, or Ant-style patterns such as <code>src/**&#47;*.java</code>
+		 * @return paths separated with commas
+		 */
+		String value();
+	}
+	
+	/**
+	 * Target method annotation that indicates the files the target writes.
+	 * @see Inputs
+	 */
+	@Documented
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public @interface Outputs {
+		/**
+		 * Paths of files, directories, or Ant-style patterns such as <code>target/**&#47;*.jar</code>
+		 * @return paths separated with commas
+		 */
+		String value();
+	}
 
 	static final String PREFIX = "make";
 	
 	private BuildTarget targetMethod(final Method method) {
-		return new BuildTarget() {
+		return new FileTarget() {
 			
 			public String name() {
 				String name = method.getName().substring(PREFIX.length());
@@ -73,6 +105,16 @@ public class MethodTargetBuild extends TargetBuild {
 				return depends == null? new String[0] : depends.value().split(",");
 			}
 			
+			public String[] inputs() {
+				Inputs inputs = method.getAnnotation(Inputs.class);
+				return inputs == null? new String[0] : inputs.value().split(",");
+			}
+			
+			public String[] outputs() {
+				Outputs outputs = method.getAnnotation(Outputs.class);
+				return outputs == null? new String[0] : outputs.value().split(",");
+			}
+			
 			public void execute() {
 				try {
 					method.setAccessible(true);
@@ -0,0 +1,450 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.RecursiveAction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The files and directories beneath a {@link Dir}, including the Dir itself,
+ * that match a set of Ant-style include and exclude patterns.
+ * <p>
+ * Patterns are paths relative to the Dir, using <code>/</code> as the separator.
+ * <code>?</code> and <code>*</code> match characters within a name,
+ * and <code>**</code> matches any number of directories.
+ * A directory that matches an exclude pattern is skipped along with everything beneath it,
+ * and a directory is not read at all if nothing beneath it could match an include pattern.
+ * <p>
+ * Each file's attributes are read once, as its directory is listed,
+ * and symbolic links beneath the selection's directory are not followed.
+ * Bulk operations can be run on the common fork-join pool by selecting {@link #parallel()},
+ * eg
+ * <pre>
+ * dir("target").select("**&#47;*.class").exclude("generated/**").parallel().delete();
+ * </pre>
+ *
+ * @author gilesjb
+ */
+public class Selection {
+
+	/**
+	 * An operation on a selected file or directory
+	 */
+	public interface Action {
+		void apply(Path path, BasicFileAttributes attrs) throws IOException;
+	}
+
+	private final Path root;
+	private final List<Pattern> includes = new ArrayList<Pattern>(), excludes = new ArrayList<Pattern>();
+	private boolean parallel = false;
+
+	Selection(Dir dir, String... includes) {
+		this.root = dir.toPath();
+		include(includes);
+	}
+
+	/**
+	 * @return the directory that the patterns are relative to
+	 */
+	Path root() {
+		return root;
+	}
+
+	/**
+	 * Adds include patterns.
+	 * If there are none, everything that is not excluded is selected
+	 * @param patterns Ant-style patterns
+	 * @return this Selection
+	 */
+	public Selection include(String... patterns) {
+		for (String pattern : patterns) includes.add(regex(pattern));
+		return this;
+	}
+
+	/**
+	 * Adds exclude patterns
+	 * @param patterns Ant-style patterns
+	 * @return this Selection
+	 */
+	public Selection exclude(String... patterns) {
+		for (String pattern : patterns) excludes.add(regex(pattern));
+		return this;
+	}
+
+	/**
+	 * Makes the bulk operations of this selection process directories in parallel
+	 * @return this Selection
+	 */
+	public Selection parallel() {
+		parallel = true;
+		return this;
+	}
+
+	/**
+	 * A lazy stream of the selected paths in the specified order.
+	 * Directories are read as the stream reaches them
+	 * @param order the traversal order
+	 * @return a sequential stream
+	 * @throws UncheckedIOException from the stream's operations if a directory cannot be read
+	 */
+	public Stream<Path> stream(Dir.TraversalOrder order) {
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+				iterator(order), Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.DISTINCT), false);
+	}
+
+	/**
+	 * An Iterable that traverses the selected files in the specified order,
+	 * with directories represented as {@link Dir} objects
+	 * @param order the traversal order
+	 * @return a new File Iterable
+	 */
+	public Iterable<File> files(final Dir.TraversalOrder order) {
+		return new Iterable<File>() {
+			public Iterator<File> iterator() {
+				final Walker walker = Selection.this.iterator(order);
+				return new Iterator<File>() {
+					public boolean hasNext() {
+						return walker.hasNext();
+					}
+
+					public File next() {
+						Node node = walker.node();
+						return node.attrs.isDirectory()? Dir.valueOf(node.path.toFile()) : node.path.toFile();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Applies an action to every selected path.
+	 * A directory's action is applied before those of its children
+	 * @param action the action
+	 * @throws UncheckedIOException if a directory cannot be read or the action fails
+	 */
+	public void forEach(Action action) throws UncheckedIOException {
+		run(action, false);
+	}
+
+	/**
+	 * Deletes the selected files and directories, children before their parent.
+	 * Directories that still contain unselected files are left in place
+	 * @throws UncheckedIOException if a file cannot be deleted
+	 */
+	public void delete() throws UncheckedIOException {
+		run(new Action() {
+			public void apply(Path path, BasicFileAttributes attrs) throws IOException {
+				try {
+					Files.deleteIfExists(path);
+				} catch (DirectoryNotEmptyException e) {
+					// contains excluded files
+				}
+			}
+		}, true);
+	}
+
+	/**
+	 * Copies the selected files and directories to the same relative paths beneath another directory,
+	 * replacing existing files
+	 * @param target the destination directory
+	 * @throws UncheckedIOException if a file cannot be copied
+	 */
+	public void copyTo(Dir target) throws UncheckedIOException {
+		final Path dest = target.toPath();
+		run(new Action() {
+			public void apply(Path path, BasicFileAttributes attrs) throws IOException {
+				Path copy = dest.resolve(root.relativize(path).toString());
+				if (attrs.isDirectory()) {
+					Files.createDirectories(copy);
+				} else {
+					if (copy.getParent() != null) Files.createDirectories(copy.getParent());
+					Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING,
+							StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+				}
+			}
+		}, false);
+	}
+
+	/**
+	 * A file or directory with the attributes read when its parent was listed
+	 */
+	private static class Node {
+		final Path path;
+		final String relative;
+		final BasicFileAttributes attrs;
+		boolean selected, expanded;
+
+		Node(Path path, String relative, BasicFileAttributes attrs) {
+			this.path = path;
+			this.relative = relative;
+			this.attrs = attrs;
+		}
+	}
+
+	/**
+	 * Reads the root, following it if it is a symbolic link; links beneath it are not followed
+	 */
+	private Node rootNode() {
+		try {
+			Node node = new Node(root, "", Files.readAttributes(root, BasicFileAttributes.class));
+			node.selected = selected(node);
+			return node;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Lists the children of a directory that are selected or might contain selected files
+	 */
+	private List<Node> list(Node dir) {
+		List<Node> children = new ArrayList<Node>();
+		try {
+			DirectoryStream<Path> entries = Files.newDirectoryStream(dir.path);
+			try {
+				for (Path path : entries) {
+					String name = path.getFileName().toString();
+					Node child = new Node(path, dir.relative.isEmpty()? name : dir.relative + '/' + name,
+							Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+					child.selected = selected(child);
+					if (child.attrs.isDirectory()? !excluded(child) && (child.selected || reachable(child)) : child.selected) {
+						children.add(child);
+					}
+				}
+			} finally {
+				entries.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return children;
+	}
+
+	private boolean selected(Node node) {
+		if (excluded(node)) return false;
+		if (includes.isEmpty()) return true;
+		for (Pattern include : includes) {
+			if (include.matcher(node.relative).matches()) return true;
+		}
+		return false;
+	}
+
+	private boolean excluded(Node node) {
+		for (Pattern exclude : excludes) {
+			if (exclude.matcher(node.relative).matches()) return true;
+			if (node.attrs.isDirectory() && exclude.matcher(node.relative + '/').matches()) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether anything beneath a directory could match an include pattern
+	 */
+	private boolean reachable(Node dir) {
+		if (includes.isEmpty()) return true;
+		String prefix = dir.relative.isEmpty()? "" : dir.relative + '/';
+		for (Pattern include : includes) {
+			Matcher matcher = include.matcher(prefix);
+			if (matcher.matches() || matcher.hitEnd()) return true;
+		}
+		return false;
+	}
+
+	private boolean expandable(Node node) {
+		return node.attrs.isDirectory() && (node.relative.isEmpty() || reachable(node));
+	}
+
+	/**
+	 * Iterates over the selected paths using an agenda,
+	 * with each directory's children inserted at the position given by the traversal order
+	 */
+	private class Walker implements Iterator<Path> {
+		final Dir.TraversalOrder order;
+		final LinkedList<Node> agenda = new LinkedList<Node>();
+
+		Walker(Dir.TraversalOrder order) {
+			this.order = order;
+			Node root = rootNode();
+			if (root != null) {
+				if (root.attrs.isDirectory()) {
+					schedule(root);
+				} else if (root.selected) {
+					agenda.add(root);
+				}
+			}
+		}
+
+		public boolean hasNext() {
+			while (!agenda.isEmpty()) {
+				Node head = agenda.peekFirst();
+				if (head.expanded || !head.attrs.isDirectory()) {
+					if (head.selected) return true;
+					agenda.removeFirst();
+				} else {
+					schedule(agenda.removeFirst());
+				}
+			}
+			return false;
+		}
+
+		Node node() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return agenda.removeFirst();
+		}
+
+		public Path next() {
+			return node().path;
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void schedule(Node dir) {
+			dir.expanded = true;
+			agenda.addFirst(dir);
+			if (expandable(dir)) agenda.addAll(order.expandAt(agenda.size()), list(dir));
+		}
+	}
+
+	private Walker iterator(Dir.TraversalOrder order) {
+		return new Walker(order);
+	}
+
+	/**
+	 * Applies an action to a directory and its selected children,
+	 * forking a task for each subdirectory and, in parallel mode, for each batch of files
+	 */
+	@SuppressWarnings("serial")
+	private class Task extends RecursiveAction {
+		static final int BATCH = 256;
+		
+		final Node dir;
+		final List<Node> files;
+		final Action action;
+		final boolean childrenFirst;
+
+		Task(Node dir, List<Node> files, Action action, boolean childrenFirst) {
+			this.dir = dir;
+			this.files = files;
+			this.action = action;
+			this.childrenFirst = childrenFirst;
+		}
+
+		@Override protected void compute() {
+			try {
+				if (dir == null) {
+					for (Node file : files) apply(file);
+					return;
+				}
+				
+				if (!childrenFirst) apply(dir);
+				List<Task> tasks = new ArrayList<Task>();
+				List<Node> batch = new ArrayList<Node>();
+				if (expandable(dir)) {
+					for (Node child : list(dir)) {
+						if (child.attrs.isDirectory()) {
+							tasks.add(new Task(child, null, action, childrenFirst));
+						} else if (parallel) {
+							batch.add(child);
+							if (batch.size() == BATCH) {
+								tasks.add(new Task(null, batch, action, childrenFirst));
+								batch = new ArrayList<Node>();
+							}
+						} else {
+							apply(child);
+						}
+					}
+				}
+				if (parallel) {
+					tasks.add(new Task(null, batch, action, childrenFirst));
+					invokeAll(tasks);
+				} else {
+					for (Task task : tasks) task.compute();
+				}
+				if (childrenFirst) apply(dir);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void apply(Node node) throws IOException {
+			if (node.selected) action.apply(node.path, node.attrs);
+		}
+	}
+
+	private void run(Action action, boolean childrenFirst) {
+		Node node = rootNode();
+		if (node == null) return;
+		Task task = new Task(node, null, action, childrenFirst);
+		if (parallel) {
+			task.invoke();
+		} else {
+			task.compute();
+		}
+	}
+
+	/**
+	 * Converts an Ant-style pattern to a regular expression
+	 */
+	static Pattern regex(String glob) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (glob.startsWith("**/", i)) {
+				regex.append("(.*/)?");
+				i += 2;
+			} else if (glob.startsWith("**", i)) {
+				regex.append(".*");
+				i++;
+			} else if (c == '*') {
+				regex.append("[^/]*");
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return Pattern.compile(regex.toString());
+	}
+}
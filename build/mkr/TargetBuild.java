@@ -15,13 +15,27 @@
  */
 package mkr;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import mkr.build.Behavior;
+import mkr.build.Fingerprints;
+import mkr.build.OutputCache;
+import mkr.build.Profile;
 import mkr.build.Logger;
+import mkr.build.TargetGraph;
+import mkr.build.Watcher;
 import mkr.build.controller.BuildTarget;
+import mkr.build.controller.FileTarget;
 import mkr.build.controller.Loggers;
 import mkr.build.controller.Parameterized;
 import mkr.build.controller.Runner;
@@ -43,8 +57,30 @@ public abstract class TargetBuild extends Build {
 	
 	public static final String DEFAULT_TARGET = "<root>";
 	
+	/**
+	 * The path of the fingerprint store, relative to the build directory
+	 */
+	public static final String FINGERPRINTS = ".mkr/fingerprints";
+	
+	/**
+	 * The path of the trace file written by the <code>-profile</code> option,
+	 * relative to the build directory
+	 */
+	public static final String TRACE = ".mkr/trace.json";
+	
 	private Map<String, BuildTarget> targets = null;
 	private final Set<String> called = new HashSet<String>();
+	private int jobs = 1;
+	private boolean watch = false;
+	private Watcher watcher = null;
+	private Profile profile = null;
+	private Fingerprints fingerprints = null;
+	private final Map<String, String> built = new ConcurrentHashMap<String, String>();
+	private File cacheDir = null;
+	private long cacheLimit = 1024;
+	private boolean cacheLinks = false;
+	private OutputCache cache = null;
+	private final Map<String, String> keys = new ConcurrentHashMap<String, String>();
 	
 	@SuppressWarnings("serial")
 	public static class MissingTargetException extends RuntimeException {
@@ -85,27 +121,187 @@ public abstract class TargetBuild extends Build {
 	}
 
 	/**
-	 * Builds the specified target and its dependencies
+	 * Builds the specified target and its dependencies.
+	 * Dependencies are built before the targets that depend on them;
+	 * if the <code>-jobs</code> parameter allows, independent targets are built at the same time
 	 * @param name the name of the target
 	 * @throws MissingTargetException
+	 * @throws TargetGraph.CycleException if the target's dependencies contain a cycle
 	 * @throws Exception
 	 */
 	public void buildTarget(String name) throws MissingTargetException {
-		using(Loggers.class).verbose().log("Building target: " + name);
-		BuildTarget target = targets().get(name);
-		if (target == null) throw new MissingTargetException(name);
+		if (!targets().containsKey(name)) throw new MissingTargetException(name);
 		
-		called.add(name);
-		for (String pre : target.dependencies()) {
-			if (!called.contains(pre)) buildTarget(pre);
+		TargetGraph graph = new TargetGraph(targets(), name, called);
+		called.addAll(graph.names());
+		using(Loggers.class).verbose().log("Build order for " + name + ": " + graph);
+		try {
+			graph.execute(jobs, new TargetGraph.Action() {
+				public void run(BuildTarget target) {
+					try {
+						build(target);
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Build interrupted", e);
+		} finally {
+			if (fingerprints != null) {
+				try {
+					fingerprints.save();
+				} catch (IOException e) {
+					using(Loggers.class).warn().log("Could not save fingerprints: " + e.getMessage());
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Executes a target unless it declares files that,
+	 * along with those of its dependencies, are unchanged since it was last built.
+	 * If the <code>-cache</code> option was given,
+	 * a target's outputs are restored from the cache instead of executing it when possible
+	 */
+	private void build(BuildTarget target) throws IOException {
+		final Logger verbose = using(Loggers.class).verbose();
+		String name = target.name();
+		FileTarget files = null;
+		if (target instanceof FileTarget) {
+			files = (FileTarget) target;
+			if (files.inputs().length == 0 && files.outputs().length == 0) files = null;
 		}
 		
+		String key = null;
+		if (files == null) {
+			verbose.log("Building target " + name + ": no files declared");
+		} else {
+			key = cacheKey(files);
+			if (key != null) keys.put(name, key);
+			String last = fingerprints().target(name);
+			String current = fingerprint(files);
+			if (current.equals(last)) {
+				verbose.log("Skipping target " + name + ": files and dependencies unchanged");
+				built.put(name, current);
+				return;
+			}
+			verbose.log("Building target " + name + ": " +
+					(last == null? "no previous build recorded" : "files or dependencies changed"));
+			fingerprints().target(name, null);
+			
+			if (key != null && cache.restore(key, files.outputs())) {
+				using(Loggers.class).info().log("Restored target " + name + " from cache");
+				current = fingerprint(files);
+				fingerprints().target(name, current);
+				built.put(name, current);
+				return;
+			}
+		}
+		
+		String inputs = files == null? null : inputFingerprint(files);
+		Profile.Sample sample = profile == null? null : profile.start(target);
 		using(TargetEvents.class).targetStarting(target);
 		try {
 			target.execute();
 		} finally {
 			using(TargetEvents.class).targetFinished(target);
+			if (sample != null) sample.finished();
+		}
+		
+		if (files != null) {
+			String current = fingerprint(files);
+			built.put(name, current);
+			if (!inputs.equals(inputFingerprint(files))) {
+				verbose.log("Not recording target " + name + ": inputs changed while it was building");
+				return;
+			}
+			fingerprints().target(name, current);
+		}
+		if (key != null) cache.store(key, files.outputs());
+	}
+	
+	/**
+	 * Calculates the cache key of a target
+	 * @return the key, or null if the cache is not in use, the target declares no outputs,
+	 * or one of its dependencies has no key
+	 */
+	private String cacheKey(FileTarget target) throws IOException {
+		if (cache() == null || target.outputs().length == 0) return null;
+		
+		List<String> dependencies = new ArrayList<String>();
+		for (String pre : target.dependencies()) {
+			String key = keys.get(pre);
+			if (key == null) return null;
+			dependencies.add(pre + " " + key);
+		}
+		String inputs = fingerprints().fingerprint(target.inputs(), new String[0], Collections.<String>emptyList());
+		return cache.key(getClass(), target.name(), inputs, target.outputs(), dependencies);
+	}
+	
+	private synchronized OutputCache cache() {
+		if (cache == null && cacheDir != null) {
+			cache = new OutputCache(cacheDir, cacheLimit * 1024 * 1024, cacheLinks);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Trims the cache to its size limit and logs the cache hit and miss counts,
+	 * if the <code>-cache</code> option was given
+	 */
+	private void reportCache() {
+		if (cache == null) return;
+		try {
+			cache.trim();
+		} catch (IOException e) {
+			using(Loggers.class).warn().log("Could not trim cache: " + e.getMessage());
 		}
+		using(Loggers.class).info().log("Cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+	}
+	
+	/**
+	 * Fingerprints a target's inputs alone, to detect changes made while it is building
+	 */
+	private String inputFingerprint(FileTarget target) throws IOException {
+		return fingerprints().fingerprint(target.inputs(), new String[0], Collections.<String>emptyList());
+	}
+	
+	private String fingerprint(FileTarget target) throws IOException {
+		List<String> dependencies = new ArrayList<String>();
+		for (String pre : target.dependencies()) {
+			String fingerprint = built.get(pre);
+			if (fingerprint != null) dependencies.add(pre + " " + fingerprint);
+		}
+		return fingerprints().fingerprint(target.inputs(), target.outputs(), dependencies);
+	}
+	
+	/**
+	 * Logs the profile of the targets built, if the <code>-profile</code> option was given,
+	 * and writes it to the trace file
+	 */
+	private void reportProfile() {
+		if (profile == null) return;
+		
+		Logger info = using(Loggers.class).info();
+		info.log("Target profile:");
+		profile.report(info);
+		File trace = new File(BUILD_DIR == null? "." : BUILD_DIR, TRACE);
+		try {
+			profile.writeTrace(trace);
+			info.log("Trace written to " + trace);
+		} catch (IOException e) {
+			using(Loggers.class).warn().log("Could not write trace: " + e.getMessage());
+		}
+		profile = null;
+	}
+	
+	private synchronized Fingerprints fingerprints() throws IOException {
+		if (fingerprints == null) {
+			fingerprints = new Fingerprints(new File(BUILD_DIR == null? "." : BUILD_DIR, FINGERPRINTS));
+		}
+		return fingerprints;
 	}
 	
 	private void showTargets() {
@@ -115,20 +311,120 @@ public abstract class TargetBuild extends Build {
 		}
 	}
 
+	/**
+	 * Starts watching the inputs of the requested targets and their dependencies before they are built,
+	 * so that changes made during the build are not missed
+	 * @param args the build arguments, which include the target names
+	 */
+	private void startWatching(String[] args) throws IOException {
+		Set<String> names = new HashSet<String>();
+		for (String arg : args) {
+			if (!targets().containsKey(arg)) continue;
+			try {
+				names.addAll(new TargetGraph(targets(), arg, Collections.<String>emptySet()).names());
+			} catch (TargetGraph.CycleException e) {
+				// reported when the target is built
+			}
+		}
+		watcher = new Watcher().add(inputs(names));
+	}
+	
+	private void stopWatching() throws IOException {
+		if (watcher != null) watcher.close();
+		watcher = null;
+	}
+	
+	private List<String> inputs(Collection<String> names) {
+		List<String> inputs = new ArrayList<String>();
+		for (String name : names) {
+			BuildTarget target = targets().get(name);
+			if (target instanceof FileTarget) inputs.addAll(Arrays.asList(((FileTarget) target).inputs()));
+		}
+		return inputs;
+	}
+
+	/**
+	 * Waits for changes to the inputs of the targets that have been built,
+	 * then forgets that they were built so they can be built again
+	 * @return false if there is nothing to watch or the thread was interrupted
+	 */
+	private boolean awaitChanges() throws IOException {
+		watcher.add(inputs(called));
+		if (watcher.isEmpty()) {
+			using(Loggers.class).warn().log("Nothing to watch, the targets built do not declare any inputs");
+			return false;
+		}
+		
+		using(Loggers.class).info().log("Watching for changes in " + watcher);
+		try {
+			watcher.await();
+		} catch (InterruptedException e) {
+			using(Loggers.class).info().log("Stopped watching");
+			return false;
+		}
+		called.clear();
+		built.clear();
+		keys.clear();
+		return true;
+	}
+
 	private String toString(BuildTarget target) {
 		return target.name();
 	}
 
 	private static class Controller extends Behavior implements Runner, Parameterized, TargetEvents {
 		
-		public void run(Object build, Runner.Callback callback, String... args) {
-			parent(Runner.class).run(build, callback, args.length == 0? new String[] {DEFAULT_TARGET} : args);
+		public void run(Object build, final Runner.Callback callback, String... args) {
+			parent(Runner.class).run(build, new Runner.Callback() {
+				public void invoke(Object build, String[] args) throws Exception {
+					TargetBuild tb = (TargetBuild) build;
+					if (Arrays.asList(args).contains("-watch")) tb.startWatching(args);
+					try {
+						do {
+							try {
+								callback.invoke(build, args);
+							} catch (Exception e) {
+								if (!tb.watch) throw e;
+								as(Loggers.class).error().log("Build failed: " + e.getMessage());
+							} finally {
+								tb.reportCache();
+								tb.reportProfile();
+							}
+						} while (tb.watch && tb.awaitChanges());
+					} finally {
+						tb.stopWatching();
+					}
+				}
+			}, args.length == 0? new String[] {DEFAULT_TARGET} : args);
 		}
 		
 		public int parameters(Object build, String[] params) throws Exception {
 			TargetBuild tb = (TargetBuild) build;
 			if (params[0].equals("-targets")) {
 				tb.showTargets();
+			} else if (params[0].equals("-jobs")) {
+				if (params.length < 2) return 2;
+				if (!params[1].matches("[1-9][0-9]*")) {
+					throw new IllegalArgumentException("Option -jobs requires a positive number: " + params[1]);
+				}
+				tb.jobs = Integer.parseInt(params[1]);
+				as(Loggers.class).verbose().log("Building up to " + tb.jobs + " targets at a time");
+			} else if (params[0].equals("-watch")) {
+				tb.watch = true;
+			} else if (params[0].equals("-profile")) {
+				tb.profile = new Profile();
+			} else if (params[0].equals("-cache")) {
+				if (params.length < 2) return 2;
+				tb.cacheDir = new File(params[1]);
+				as(Loggers.class).verbose().log("Using output cache in " + tb.cacheDir);
+			} else if (params[0].equals("-cachelimit")) {
+				if (params.length < 2) return 2;
+				if (!params[1].matches("[1-9][0-9]*")) {
+					throw new IllegalArgumentException("Option -cachelimit requires a positive number of megabytes: " + params[1]);
+				}
+				tb.cacheLimit = Long.parseLong(params[1]);
+			} else if (params[0].equals("-cachelinks")) {
+				tb.cacheLinks = true;
 			} else if (!params[0].startsWith("-")) {
 				tb.buildTarget(params[0]);
 			} else {
@@ -0,0 +1,236 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import mkr.Build;
+
+/**
+ * A long-lived build process that runs builds for clients connecting through a local socket,
+ * so that the JVM, the Ant classes and the compiled build script stay warm between builds.
+ * <p>
+ * A daemon serves the working directory and script directory it was started in.
+ * It listens on a loopback port and writes the port and an access token to {@link #PORT_FILE}
+ * in the script directory.
+ * A client connects to the port and sends UTF-8 lines:
+ * the token, the build class name, each build parameter, then an empty line.
+ * The build's output is written back to the socket, which is closed when the build finishes.
+ * If the client disconnects while the build is running, the build thread is interrupted.
+ * Sending {@link #STOP} instead of a class name shuts the daemon down.
+ * <p>
+ * Builds run one at a time.
+ * Each build loads the mkr classes and the build class in a fresh class loader,
+ * because the build controller and the Ant project are held in static fields,
+ * while the other classpath entries are loaded once and shared between builds.
+ *
+ * @author gilesjb
+ */
+public class Daemon {
+
+	/**
+	 * The path of the file holding the daemon's port and token, relative to the script directory
+	 */
+	public static final String PORT_FILE = ".mkr/daemon";
+
+	/**
+	 * The request that stops the daemon
+	 */
+	public static final String STOP = "--stop";
+
+	private final File portFile;
+	private final ScriptCache scripts;
+	private final List<URL> isolated = new ArrayList<URL>();
+	private final ClassLoader shared;
+	private final String token;
+
+	/**
+	 * Creates a daemon
+	 *
+	 * @param dir the directory containing the build script sources
+	 * @param classpath the classpath of the build, including the mkr classes
+	 * @throws IOException if the classpath cannot be read
+	 */
+	public Daemon(File dir, String classpath) throws IOException {
+		this.portFile = new File(dir, PORT_FILE);
+		this.scripts = new ScriptCache(dir, classpath);
+
+		List<URL> common = new ArrayList<URL>();
+		for (String path : classpath.split(File.pathSeparator)) {
+			File entry = new File(path);
+			(containsMkr(entry)? isolated : common).add(entry.toURI().toURL());
+		}
+		this.shared = new URLClassLoader(common.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+
+		byte[] bytes = new byte[16];
+		new SecureRandom().nextBytes(bytes);
+		this.token = Fingerprints.hex(bytes);
+	}
+
+	private static boolean containsMkr(File entry) throws IOException {
+		String resource = Build.class.getName().replace('.', '/') + ".class";
+		if (entry.isDirectory()) return new File(entry, resource).isFile();
+		if (!entry.isFile()) return false;
+
+		ZipFile zip = new ZipFile(entry);
+		try {
+			return zip.getEntry(resource) != null;
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * Accepts and runs builds until a client sends {@link #STOP}
+	 * @throws IOException if the socket or port file cannot be created
+	 */
+	public void serve() throws IOException {
+		ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		try {
+			portFile.getParentFile().mkdirs();
+			Writer writer = new FileWriter(portFile);
+			try {
+				writer.write(server.getLocalPort() + " " + token + "\n");
+			} finally {
+				writer.close();
+			}
+			portFile.setReadable(false, false);
+			portFile.setReadable(true, true);
+			System.out.println("mkr daemon listening on port " + server.getLocalPort());
+
+			boolean running = true;
+			while (running) {
+				Socket socket = server.accept();
+				try {
+					running = handle(socket);
+				} catch (IOException e) {
+					System.err.println("ERROR: " + e.getMessage());
+				} finally {
+					socket.close();
+				}
+			}
+		} finally {
+			portFile.delete();
+			server.close();
+		}
+		System.out.println("mkr daemon stopped");
+	}
+
+	private boolean handle(Socket socket) throws IOException {
+		final InputStream input = socket.getInputStream();
+		BufferedReader in = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+		PrintStream out = new PrintStream(socket.getOutputStream(), true, "UTF-8");
+
+		if (!token.equals(in.readLine())) {
+			out.println("ERROR: Invalid daemon token");
+			return true;
+		}
+		List<String> args = new ArrayList<String>();
+		for (String line; (line = in.readLine()) != null && line.length() > 0; ) {
+			args.add(line);
+		}
+		if (args.isEmpty()) {
+			out.println("ERROR: Missing parameter: build-class name");
+			return true;
+		}
+		if (args.get(0).equals(STOP)) {
+			out.println("Daemon stopped");
+			return false;
+		}
+
+		final Thread builder = Thread.currentThread();
+		final boolean[] finished = {false};
+		Thread monitor = new Thread("mkr-daemon-client") {
+			@Override public void run() {
+				try {
+					while (input.read() >= 0);
+				} catch (IOException e) {}
+				synchronized (finished) {
+					if (!finished[0]) builder.interrupt();
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+
+		PrintStream stdout = System.out, stderr = System.err;
+		InputStream stdin = System.in;
+		ClassLoader context = builder.getContextClassLoader();
+		System.setOut(out);
+		System.setErr(out);
+		try {
+			build(args.get(0), args.subList(1, args.size()).toArray(new String[0]));
+		} catch (Throwable t) {
+			out.println("ERROR: " + t.getMessage());
+		} finally {
+			synchronized (finished) {
+				finished[0] = true;
+				Thread.interrupted();
+			}
+			builder.setContextClassLoader(context);
+			System.setIn(stdin);
+			System.setOut(stdout);
+			System.setErr(stderr);
+			out.flush();
+		}
+		return true;
+	}
+
+	private void build(String name, String[] args) throws Throwable {
+		List<URL> urls = new ArrayList<URL>(isolated);
+		urls.add(scripts.classes(name).toURI().toURL());
+		URLClassLoader loader = new URLClassLoader(urls.toArray(new URL[0]), shared);
+		try {
+			Thread.currentThread().setContextClassLoader(loader);
+			Class<?> script = Class.forName(name, true, loader);
+			loader.loadClass(Build.class.getName())
+				.getMethod("start", Class.class, String[].class)
+				.invoke(null, script, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		} finally {
+			loader.close();
+		}
+	}
+
+	/**
+	 * Starts a daemon for the script directory given by the <code>make.java.dir</code> property
+	 * and the classpath of this JVM
+	 *
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		new Daemon(new File(Build.BUILD_DIR == null? "." : Build.BUILD_DIR), System.getProperty("java.class.path")).serve();
+	}
+}
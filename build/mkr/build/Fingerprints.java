@@ -0,0 +1,221 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import mkr.Dir;
+
+/**
+ * A persistent store of file and target fingerprints,
+ * used to decide whether a target's files have changed since it was last built.
+ * <p>
+ * A file's fingerprint is a hash of its content.
+ * The store remembers the size and modification time of each file it has hashed,
+ * and only reads a file again if one of them has changed.
+ *
+ * @author gilesjb
+ */
+public class Fingerprints {
+
+	private static final String TARGET = "target:", FILE = "file:";
+
+	private final File store;
+	private final Properties entries = new Properties();
+
+	/**
+	 * Creates a store, loading it from a file if the file exists
+	 *
+	 * @param store the file that the fingerprints are saved in
+	 * @throws IOException if the file cannot be read
+	 */
+	public Fingerprints(File store) throws IOException {
+		this.store = store;
+		if (store.isFile()) {
+			InputStream in = new FileInputStream(store);
+			try {
+				entries.load(in);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Gets the fingerprint last recorded for a target
+	 * @param target the target name
+	 * @return the fingerprint, or null if none has been recorded
+	 */
+	public String target(String target) {
+		return entries.getProperty(TARGET + target);
+	}
+
+	/**
+	 * Records the fingerprint for a target
+	 * @param target the target name
+	 * @param fingerprint the fingerprint, or null to forget the target
+	 */
+	public void target(String target, String fingerprint) {
+		if (fingerprint == null) {
+			entries.remove(TARGET + target);
+		} else {
+			entries.setProperty(TARGET + target, fingerprint);
+		}
+	}
+
+	/**
+	 * Calculates a fingerprint for a target from its files and the fingerprints of its dependencies.
+	 * <p>
+	 * Each file spec is a path relative to the working directory,
+	 * either of a single file, of a directory that stands for all the files beneath it,
+	 * or an Ant-style pattern such as <code>src/**&#47;*.java</code>
+	 *
+	 * @param inputs specs of the files the target reads
+	 * @param outputs specs of the files the target writes
+	 * @param dependencies fingerprints of the target's dependencies
+	 * @return the fingerprint
+	 * @throws IOException if a file cannot be read
+	 */
+	public String fingerprint(String[] inputs, String[] outputs, List<String> dependencies) throws IOException {
+		MessageDigest digest = digest();
+		for (String spec : inputs) update(digest, "in", spec);
+		for (String spec : outputs) update(digest, "out", spec);
+		for (String dependency : dependencies) update(digest, "dep " + dependency);
+		return hex(digest.digest());
+	}
+
+	/**
+	 * Saves the fingerprints to the store file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void save() throws IOException {
+		store.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(store);
+		try {
+			entries.store(out, "mkr fingerprints");
+		} finally {
+			out.close();
+		}
+	}
+
+	private void update(MessageDigest digest, String type, String spec) throws IOException {
+		spec = spec.trim();
+		update(digest, type + " " + spec);
+		for (File file : files(spec)) {
+			update(digest, file.getPath() + " " + (file.isFile()? file(file) : "-"));
+		}
+	}
+
+	static void update(MessageDigest digest, String line) {
+		try {
+			digest.update((line + '\n').getBytes("UTF-8"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Expands a file spec into a sorted list of files
+	 */
+	static List<File> files(String spec) {
+		int glob = glob(spec);
+		List<File> files = new ArrayList<File>();
+		if (glob < 0) {
+			Dir dir = Dir.valueOf(spec);
+			if (dir.isDirectory()) {
+				files.addAll(dir.matching("**"));
+			} else {
+				files.add(dir);
+			}
+		} else {
+			int slash = spec.lastIndexOf('/', glob);
+			Dir dir = Dir.valueOf(slash < 0? "." : spec.substring(0, slash));
+			if (dir.isDirectory()) files.addAll(dir.matching(spec.substring(slash + 1)));
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	/**
+	 * Finds the start of the pattern in a file spec
+	 * @return the index of the first wildcard, or -1 if there is none
+	 */
+	static int glob(String spec) {
+		int glob = -1;
+		for (String meta : new String[] {"*", "?"}) {
+			int i = spec.indexOf(meta);
+			if (i >= 0 && (glob < 0 || i < glob)) glob = i;
+		}
+		return glob;
+	}
+
+	/**
+	 * Gets the hash of a file's content,
+	 * reusing the stored hash if the file's size and modification time are unchanged
+	 */
+	private String file(File file) throws IOException {
+		String stamp = file.length() + "," + file.lastModified() + ",";
+		String key = FILE + file.getPath();
+		String entry = entries.getProperty(key);
+		if (entry != null && entry.startsWith(stamp)) {
+			return entry.substring(stamp.length());
+		}
+
+		String hash = hex(update(digest(), file).digest());
+		entries.setProperty(key, stamp + hash);
+		return hash;
+	}
+
+	static MessageDigest update(MessageDigest digest, File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[8192];
+			for (int n; (n = in.read(buffer)) > 0; ) {
+				digest.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return digest;
+	}
+
+	static MessageDigest digest() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,431 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.tree.Tree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+
+import mkr.Dir;
+import mkr.Selection;
+
+/**
+ * Compiles a tree of Java sources in-process, recompiling only what has changed.
+ * <p>
+ * For each source it records a content hash, the class files compiled from it,
+ * the top-level types it declares and the sources of the types it refers to.
+ * A run recompiles the sources that are new or changed, or whose class files are missing,
+ * together with every source that depends on them, directly or indirectly.
+ * Class files of recompiled or deleted sources are deleted first.
+ * Changing the classpath, the size or modification time of a jar or class file on it,
+ * or the options recompiles everything.
+ * <p>
+ * The record is kept in a file next to the class directory, named after it with a <code>.deps</code> suffix.
+ * The compiler and its file manager are shared by all compilations in the JVM,
+ * so runs are serialized.
+ *
+ * @author gilesjb
+ */
+public class IncrementalCompiler {
+
+	private static final String HASH = "hash:", CLASSES = "classes:", TYPES = "types:", DEPENDS = "depends:",
+			CONFIG = "config";
+
+	private static JavaCompiler compiler = null;
+	private static StandardJavaFileManager files = null;
+
+	private final Dir sources, classes;
+	private final Selection selection;
+	private final List<String> classpath = new ArrayList<String>(), options = new ArrayList<String>();
+
+	/**
+	 * Creates a compilation of all the Java sources beneath a directory
+	 * @param sources the source root directory
+	 * @param classes the output directory
+	 */
+	public IncrementalCompiler(Dir sources, Dir classes) {
+		this.sources = sources;
+		this.classes = classes;
+		this.selection = sources.select("**/*.java");
+	}
+
+	/**
+	 * Adds classpath entries
+	 * @param paths classpaths, each of which may contain several entries separated by the path separator
+	 * @return this compilation
+	 */
+	public IncrementalCompiler classpath(String... paths) {
+		for (String path : paths) {
+			if (path.length() > 0) classpath.add(path);
+		}
+		return this;
+	}
+
+	/**
+	 * Adds classpath entries
+	 * @param entries jar files or class directories
+	 * @return this compilation
+	 */
+	public IncrementalCompiler classpath(File... entries) {
+		for (File entry : entries) classpath.add(entry.getPath());
+		return this;
+	}
+
+	/**
+	 * Adds javac options, such as <code>-g</code> or <code>-source</code>
+	 * @param options the options
+	 * @return this compilation
+	 */
+	public IncrementalCompiler options(String... options) {
+		this.options.addAll(Arrays.asList(options));
+		return this;
+	}
+
+	/**
+	 * Excludes sources from the compilation
+	 * @param patterns Ant-style patterns relative to the source directory
+	 * @return this compilation
+	 */
+	public IncrementalCompiler exclude(String... patterns) {
+		selection.exclude(patterns);
+		return this;
+	}
+
+	/**
+	 * Gets the file that records the state of the last compilation
+	 * @return the record file
+	 */
+	public File record() {
+		return new File(classes.getParentFile(), classes.getName() + ".deps");
+	}
+
+	/**
+	 * Compiles the sources that have changed since the last run, and those that depend on them
+	 * @return the number of sources compiled
+	 * @throws IOException if a file cannot be read or written
+	 * @throws IllegalArgumentException if compilation fails
+	 */
+	public int run() throws IOException, IllegalArgumentException {
+		Properties record = load();
+		String config = config();
+		if (!config.equals(record.getProperty(CONFIG))) {
+			for (String source : recorded(record)) forget(record, source);
+			record.setProperty(CONFIG, config);
+		}
+
+		Map<String, File> current = new HashMap<String, File>();
+		for (File file : selection.files(Dir.PARENT_FIRST)) {
+			if (!(file instanceof Dir)) current.put(relative(sources, file), file);
+		}
+
+		Set<String> changed = new HashSet<String>();
+		Map<String, String> hashes = new HashMap<String, String>();
+		for (String source : recorded(record)) {
+			if (!current.containsKey(source)) changed.add(source);
+		}
+		for (Map.Entry<String, File> source : current.entrySet()) {
+			String hash = hash(source.getValue());
+			hashes.put(source.getKey(), hash);
+			if (!hash.equals(record.getProperty(HASH + source.getKey())) || !outputsExist(record, source.getKey())) {
+				changed.add(source.getKey());
+			}
+		}
+
+		Set<String> dirty = dependents(record, changed);
+		for (String source : dirty) forget(record, source);
+		dirty.retainAll(current.keySet());
+		if (dirty.isEmpty()) {
+			save(record);
+			return 0;
+		}
+
+		classes.mkdirs();
+		boolean ok;
+		try {
+			ok = compile(record, dirty, current);
+		} finally {
+			save(record);
+		}
+		if (!ok) throw new IllegalArgumentException("javac failed");
+
+		for (String source : dirty) record.setProperty(HASH + source, hashes.get(source));
+		save(record);
+		return dirty.size();
+	}
+
+	private boolean compile(Properties record, Set<String> dirty, Map<String, File> current) throws IOException {
+		final Map<URI, String> byUri = new HashMap<URI, String>();
+		final Map<String, Set<String>> outputs = new HashMap<String, Set<String>>();
+		final Map<String, Set<String>> declared = new HashMap<String, Set<String>>();
+		final Map<String, Set<String>> referenced = new HashMap<String, Set<String>>();
+
+		synchronized (IncrementalCompiler.class) {
+			if (compiler == null) {
+				compiler = ToolProvider.getSystemJavaCompiler();
+				if (compiler == null) throw new IllegalStateException("No Java compiler available, mkr must be run with a JDK");
+				files = compiler.getStandardFileManager(null, null, null);
+			}
+
+			List<File> compiling = new ArrayList<File>();
+			for (String source : dirty) compiling.add(current.get(source));
+			Iterable<? extends JavaFileObject> units = files.getJavaFileObjects(compiling.toArray(new File[0]));
+			for (JavaFileObject unit : units) {
+				String source = relative(sources, new File(unit.toUri()));
+				byUri.put(unit.toUri(), source);
+				outputs.put(source, new TreeSet<String>());
+				declared.put(source, new TreeSet<String>());
+				referenced.put(source, new TreeSet<String>());
+			}
+
+			JavaFileManager manager = new ForwardingJavaFileManager<StandardJavaFileManager>(files) {
+				@Override public JavaFileObject getJavaFileForOutput(Location location, String className,
+						JavaFileObject.Kind kind, FileObject sibling) throws IOException {
+					JavaFileObject output = super.getJavaFileForOutput(location, className, kind, sibling);
+					String source = sibling == null? null : byUri.get(sibling.toUri());
+					if (source != null) outputs.get(source).add(relative(classes, new File(output.toUri())));
+					return output;
+				}
+			};
+
+			List<String> args = new ArrayList<String>(options);
+			args.addAll(Arrays.asList("-d", classes.getPath(), "-cp", classpath(true), "-implicit:none"));
+			final JavacTask task = (JavacTask) compiler.getTask(null, manager, null, args, null, units);
+			final Trees trees = Trees.instance(task);
+			task.addTaskListener(new TaskListener() {
+				public void started(TaskEvent e) {}
+
+				public void finished(TaskEvent e) {
+					if (e.getKind() != TaskEvent.Kind.ANALYZE) return;
+					String source = byUri.get(e.getSourceFile().toUri());
+					if (source == null) return;
+					declared.get(source).add(e.getTypeElement().getQualifiedName().toString());
+					scan(trees, e.getCompilationUnit(), referenced.get(source));
+				}
+			});
+			if (!task.call()) return false;
+		}
+
+		Map<String, String> owners = new HashMap<String, String>();
+		for (String source : recorded(record)) {
+			for (String type : list(record, TYPES + source)) owners.put(type, source);
+		}
+		for (Map.Entry<String, Set<String>> source : declared.entrySet()) {
+			for (String type : source.getValue()) owners.put(type, source.getKey());
+		}
+		for (String source : outputs.keySet()) {
+			Set<String> depends = new TreeSet<String>();
+			for (String type : referenced.get(source)) {
+				String owner = owners.get(type);
+				if (owner != null && !owner.equals(source)) depends.add(owner);
+			}
+			record.setProperty(CLASSES + source, join(outputs.get(source)));
+			record.setProperty(TYPES + source, join(declared.get(source)));
+			record.setProperty(DEPENDS + source, join(depends));
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the names of the top-level types referred to by a compilation unit
+	 */
+	private static void scan(final Trees trees, CompilationUnitTree unit, final Set<String> types) {
+		new TreePathScanner<Void, Void>() {
+			@Override public Void visitIdentifier(IdentifierTree node, Void p) {
+				add(trees.getElement(getCurrentPath()));
+				return super.visitIdentifier(node, p);
+			}
+
+			@Override public Void visitMemberSelect(MemberSelectTree node, Void p) {
+				add(trees.getElement(getCurrentPath()));
+				return super.visitMemberSelect(node, p);
+			}
+
+			private void add(Element element) {
+				while (element != null && !(element instanceof PackageElement)) {
+					Element outer = element.getEnclosingElement();
+					if (outer instanceof PackageElement && (element.getKind().isClass() || element.getKind().isInterface())) {
+						types.add(((TypeElement) element).getQualifiedName().toString());
+						return;
+					}
+					element = outer;
+				}
+			}
+		}.scan(unit, null);
+	}
+
+	/**
+	 * Finds the sources that depend, directly or indirectly, on any of a set of sources
+	 * @return the sources and their dependents
+	 */
+	private static Set<String> dependents(Properties record, Set<String> changed) {
+		Map<String, List<String>> users = new HashMap<String, List<String>>();
+		for (String source : recorded(record)) {
+			for (String dependency : list(record, DEPENDS + source)) {
+				if (!users.containsKey(dependency)) users.put(dependency, new ArrayList<String>());
+				users.get(dependency).add(source);
+			}
+		}
+
+		Set<String> found = new HashSet<String>(changed);
+		LinkedList<String> agenda = new LinkedList<String>(changed);
+		while (!agenda.isEmpty()) {
+			List<String> next = users.get(agenda.removeFirst());
+			if (next == null) continue;
+			for (String user : next) {
+				if (found.add(user)) agenda.add(user);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Deletes the class files of a source and removes it from the record
+	 */
+	private void forget(Properties record, String source) {
+		for (String output : list(record, CLASSES + source)) new File(classes, output).delete();
+		for (String key : new String[] {HASH, CLASSES, TYPES, DEPENDS}) record.remove(key + source);
+	}
+
+	private boolean outputsExist(Properties record, String source) {
+		for (String output : list(record, CLASSES + source)) {
+			if (!new File(classes, output).isFile()) return false;
+		}
+		return true;
+	}
+
+	private static Set<String> recorded(Properties record) {
+		Set<String> sources = new TreeSet<String>();
+		for (String key : record.stringPropertyNames()) {
+			if (key.startsWith(HASH)) sources.add(key.substring(HASH.length()));
+		}
+		return sources;
+	}
+
+	private String config() {
+		MessageDigest digest = Fingerprints.digest();
+		Fingerprints.update(digest, System.getProperty("java.version"));
+		Fingerprints.update(digest, classpath(false));
+		for (String entry : classpath(false).split(File.pathSeparator)) {
+			if (entry.isEmpty()) continue;
+			File file = new File(entry);
+			if (file.isDirectory()) {
+				List<File> files = Dir.valueOf(file).matching("**/*.class");
+				Collections.sort(files);
+				for (File c : files) stamp(digest, c);
+			} else {
+				stamp(digest, file);
+			}
+		}
+		for (String option : options) Fingerprints.update(digest, option);
+		return Fingerprints.hex(digest.digest());
+	}
+
+	private static void stamp(MessageDigest digest, File file) {
+		Fingerprints.update(digest, file.getPath() + " " + file.length() + " " + file.lastModified());
+	}
+
+	private String classpath(boolean withClasses) {
+		StringBuilder sb = new StringBuilder(withClasses? classes.getPath() : "");
+		for (String path : classpath) {
+			if (sb.length() > 0) sb.append(File.pathSeparatorChar);
+			sb.append(path);
+		}
+		return sb.toString();
+	}
+
+	private static String hash(File file) throws IOException {
+		return Fingerprints.hex(Fingerprints.update(Fingerprints.digest(), file).digest());
+	}
+
+	private static String relative(File root, File file) {
+		return root.getAbsoluteFile().toURI().relativize(file.getAbsoluteFile().toURI()).getPath();
+	}
+
+	private static List<String> list(Properties record, String key) {
+		String value = record.getProperty(key);
+		return value == null || value.length() == 0? Collections.<String>emptyList() : Arrays.asList(value.split(","));
+	}
+
+	private static String join(Set<String> items) {
+		StringBuilder sb = new StringBuilder();
+		for (String item : items) {
+			if (sb.length() > 0) sb.append(',');
+			sb.append(item);
+		}
+		return sb.toString();
+	}
+
+	private Properties load() throws IOException {
+		Properties record = new Properties();
+		if (record().isFile()) {
+			InputStream in = new FileInputStream(record());
+			try {
+				record.load(in);
+			} finally {
+				in.close();
+			}
+		}
+		return record;
+	}
+
+	private void save(Properties record) throws IOException {
+		if (record().getParentFile() != null) record().getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(record());
+		try {
+			record.store(out, "mkr incremental compilation");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -15,6 +15,8 @@
  */
 package mkr.build;
 
+import java.io.File;
+
 import mkr.Build;
 
 
@@ -25,19 +27,41 @@ import mkr.Build;
  */
 public class Launcher {
 	
+	/**
+	 * The option that selects compiling the build script with the {@link ScriptCache}
+	 */
+	public static final String SCRIPT = "--script";
+	
 	/**
 	 * Entry point for running inside contexts that don't support inherited main method;
-	 * Expects the first argument to be the name of the build class
+	 * Expects the first argument to be the name of the build class.
+	 * <p>
+	 * If the first argument is <code>--script</code> the build class named by the second argument
+	 * is compiled from the source directory given by the <code>make.java.dir</code> property,
+	 * or loaded from the {@link ScriptCache} if it has not changed since it was last compiled
 	 * 
 	 * @param args
 	 * @throws Exception
 	 */
 	public static void main(String[] args) throws Exception {
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		if (args.length > 0 && args[0].equals(SCRIPT)) {
+			args = shift(args);
+			if (args.length > 0) {
+				String dir = Build.BUILD_DIR == null? "." : Build.BUILD_DIR;
+				loader = new ScriptCache(new File(dir), System.getProperty("java.class.path"))
+						.classLoader(args[0], Launcher.class.getClassLoader());
+			}
+		}
 		if (args.length == 0) {
 			throw new IllegalArgumentException("Missing parameter: build-class name");
 		}
+		Build.start(Class.forName(args[0], true, loader).asSubclass(Build.class), shift(args));
+	}
+	
+	private static String[] shift(String[] args) {
 		String[] newArgs = new String[args.length - 1];
 		System.arraycopy(args, 1, newArgs, 0, args.length - 1);
-		Build.start(Class.forName(args[0], true, ClassLoader.getSystemClassLoader()).asSubclass(Build.class), newArgs);
+		return newArgs;
 	}
 }
@@ -39,7 +39,7 @@ public abstract class Logger {
 		return written;
 	}
 	
-	public final Logger log(String msg) {
+	public final synchronized Logger log(String msg) {
 		used++;
 		if (enabled) {
 			write(msg);
@@ -0,0 +1,357 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A content-addressed store of target outputs, which can be shared between working directories.
+ * <p>
+ * A target's outputs are stored under a key calculated from its name,
+ * its input files, its output specs, the keys of its dependencies and the bytecode of the build class.
+ * Each output file is stored once as a blob named after the hash of its content,
+ * and an entry for the key lists the path and blob of each file.
+ * Files are written to temporary names and renamed into place,
+ * so several builds may use the same cache directory at once;
+ * a target whose blobs are removed by another build while they are being restored is treated as a miss.
+ * <p>
+ * When {@link #trim()} finds that the blobs take up more than the size limit,
+ * the least recently used entries are removed along with the blobs that only they refer to.
+ *
+ * @author gilesjb
+ */
+public class OutputCache {
+
+	private static final String FILE = "file:";
+
+	private final File entries, blobs;
+	private final long limit;
+	private final boolean links;
+	private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+	private final AtomicBoolean stored = new AtomicBoolean(false);
+	private String build = null;
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param dir the cache directory
+	 * @param limit the size in bytes that the blobs may take up
+	 * @param links true to restore files as hard links to the blobs where possible, instead of copying them.
+	 * Hard links save space, but a tool that rewrites a restored file in place changes the blob,
+	 * so the content of each blob is checked against its hash before it is linked again
+	 */
+	public OutputCache(File dir, long limit, boolean links) {
+		this.entries = new File(dir, "entries");
+		this.blobs = new File(dir, "blobs");
+		this.limit = limit;
+		this.links = links;
+	}
+
+	/**
+	 * Gets the number of targets restored from the cache
+	 * @return the hit count
+	 */
+	public int hits() {
+		return hits.get();
+	}
+
+	/**
+	 * Gets the number of targets that were looked up but not found
+	 * @return the miss count
+	 */
+	public int misses() {
+		return misses.get();
+	}
+
+	/**
+	 * Calculates a cache key
+	 *
+	 * @param type the build class
+	 * @param target the target name
+	 * @param inputs the fingerprint of the target's input files
+	 * @param outputs the target's output specs
+	 * @param dependencies the keys of the target's dependencies
+	 * @return the key
+	 * @throws IOException if the build class cannot be read
+	 */
+	public String key(Class<?> type, String target, String inputs, String[] outputs, List<String> dependencies)
+			throws IOException {
+		MessageDigest digest = Fingerprints.digest();
+		Fingerprints.update(digest, "build " + build(type));
+		Fingerprints.update(digest, "target " + target);
+		Fingerprints.update(digest, "in " + inputs);
+		for (String spec : outputs) Fingerprints.update(digest, "out " + spec.trim());
+		for (String dependency : dependencies) Fingerprints.update(digest, "dep " + dependency);
+		return Fingerprints.hex(digest.digest());
+	}
+
+	/**
+	 * Hashes the bytecode of a build class, its member classes and its superclasses
+	 */
+	private synchronized String build(Class<?> type) throws IOException {
+		if (build == null) {
+			MessageDigest digest = Fingerprints.digest();
+			List<Class<?>> classes = new ArrayList<Class<?>>();
+			for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+				classes.add(c);
+				classes.addAll(Arrays.asList(c.getDeclaredClasses()));
+			}
+			byte[] buffer = new byte[8192];
+			for (Class<?> c : classes) {
+				Fingerprints.update(digest, c.getName());
+				InputStream in = c.getResourceAsStream("/" + c.getName().replace('.', '/') + ".class");
+				if (in == null) continue;
+				try {
+					for (int n; (n = in.read(buffer)) > 0; ) digest.update(buffer, 0, n);
+				} finally {
+					in.close();
+				}
+			}
+			build = Fingerprints.hex(digest.digest());
+		}
+		return build;
+	}
+
+	/**
+	 * Replaces a target's outputs with those stored under a key, if there are any.
+	 * If a blob is removed by another build before it is restored,
+	 * the files restored so far are deleted and the target is counted as a miss
+	 *
+	 * @param key the cache key
+	 * @param outputs the target's output specs
+	 * @return true if the outputs were restored
+	 * @throws IOException if the outputs cannot be written
+	 */
+	public boolean restore(String key, String[] outputs) throws IOException {
+		File entry = new File(entries, key);
+		Map<String, File> files = load(entry);
+		if (files == null || !complete(files)) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		for (String spec : outputs) {
+			for (File file : Fingerprints.files(spec.trim())) {
+				if (file.isFile()) Files.delete(file.toPath());
+			}
+		}
+		List<File> restored = new ArrayList<File>();
+		try {
+			for (Map.Entry<String, File> file : files.entrySet()) {
+				File target = new File(file.getKey());
+				if (target.getParentFile() != null) target.getParentFile().mkdirs();
+				Files.deleteIfExists(target.toPath());
+				if (!links || !link(file.getValue(), target)) {
+					Files.copy(file.getValue().toPath(), target.toPath());
+				}
+				restored.add(target);
+			}
+		} catch (NoSuchFileException e) {
+			for (File target : restored) target.delete();
+			misses.incrementAndGet();
+			return false;
+		}
+		entry.setLastModified(System.currentTimeMillis());
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Checks that every blob of an entry exists, and if blobs are linked, that each still matches its hash.
+	 * A blob that does not match has been changed through a link and is deleted
+	 */
+	private boolean complete(Map<String, File> files) throws IOException {
+		for (File blob : new HashSet<File>(files.values())) {
+			if (!blob.isFile()) return false;
+			if (links && !valid(blob)) {
+				blob.delete();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean valid(File blob) throws IOException {
+		try {
+			return Fingerprints.hex(Fingerprints.update(Fingerprints.digest(), blob).digest()).equals(blob.getName());
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	private static boolean link(File blob, File target) {
+		try {
+			Files.createLink(target.toPath(), blob.toPath());
+			return true;
+		} catch (IOException e) {
+			return false;
+		} catch (UnsupportedOperationException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Stores a target's outputs under a key
+	 *
+	 * @param key the cache key
+	 * @param outputs the target's output specs
+	 * @throws IOException if the cache cannot be written
+	 */
+	public void store(String key, String[] outputs) throws IOException {
+		Properties entry = new Properties();
+		for (String spec : outputs) {
+			for (File file : Fingerprints.files(spec.trim())) {
+				if (!file.isFile()) continue;
+				String hash = Fingerprints.hex(Fingerprints.update(Fingerprints.digest(), file).digest());
+				File blob = blob(hash);
+				if (!blob.isFile() || links && !valid(blob)) {
+					File temp = temp(blob.getParentFile());
+					Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					move(temp, blob);
+				}
+				blob.setLastModified(System.currentTimeMillis());
+				entry.setProperty(FILE + file.getPath(), hash);
+			}
+		}
+
+		entries.mkdirs();
+		File temp = temp(entries);
+		OutputStream out = new FileOutputStream(temp);
+		try {
+			entry.store(out, "mkr cache entry");
+		} finally {
+			out.close();
+		}
+		move(temp, new File(entries, key));
+		stored.set(true);
+	}
+
+	/**
+	 * Removes the least recently used entries until the blobs fit within the size limit,
+	 * then removes the blobs that no remaining entry refers to.
+	 * Reads every entry, so it is meant to be called once at the end of a build,
+	 * and does nothing if no outputs have been stored since it was last called.
+	 * Blobs written by other builds since it started are kept
+	 *
+	 * @throws IOException if an entry cannot be read
+	 */
+	public synchronized void trim() throws IOException {
+		if (!stored.getAndSet(false)) return;
+		long start = System.currentTimeMillis();
+		File[] all = entries.listFiles();
+		if (all == null) return;
+		Arrays.sort(all, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+
+		Set<File> used = new HashSet<File>();
+		long size = 0;
+		boolean removed = false;
+		for (File entry : all) {
+			Map<String, File> files = entry.getName().startsWith(".")? null : load(entry);
+			if (files == null) continue;
+			long more = 0;
+			for (File blob : new HashSet<File>(files.values())) {
+				if (!used.contains(blob)) more += blob.length();
+			}
+			if (size > 0 && size + more > limit) {
+				removed |= entry.delete();
+			} else {
+				size += more;
+				used.addAll(files.values());
+			}
+		}
+		if (!removed) return;
+
+		File[] dirs = blobs.listFiles();
+		if (dirs == null) return;
+		for (File dir : dirs) {
+			File[] files = dir.listFiles();
+			if (files == null) continue;
+			for (File blob : files) {
+				if (!used.contains(blob) && !blob.getName().startsWith(".") && blob.lastModified() < start) {
+					blob.delete();
+				}
+			}
+		}
+	}
+
+	private File blob(String hash) {
+		return new File(new File(blobs, hash.substring(0, 2)), hash);
+	}
+
+	private static File temp(File dir) throws IOException {
+		dir.mkdirs();
+		return File.createTempFile(".tmp", "", dir);
+	}
+
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Reads an entry
+	 * @return the blob of each file path, or null if there is no such entry
+	 */
+	private Map<String, File> load(File entry) throws IOException {
+		Properties properties = new Properties();
+		InputStream in;
+		try {
+			in = new FileInputStream(entry);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			properties.load(in);
+		} finally {
+			in.close();
+		}
+		Map<String, File> files = new TreeMap<String, File>();
+		for (String name : properties.stringPropertyNames()) {
+			if (name.startsWith(FILE)) files.put(name.substring(FILE.length()), blob(properties.getProperty(name)));
+		}
+		return Collections.unmodifiableMap(files);
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import mkr.build.controller.BuildTarget;
+
+/**
+ * Records the wall time, CPU time and allocated bytes of each target,
+ * and reports the most expensive targets and the critical path through the target graph.
+ * <p>
+ * CPU time and allocation are measured on the thread that executes the target,
+ * so work the target hands to other threads is not included.
+ *
+ * @author gilesjb
+ */
+public class Profile {
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private final long start = System.nanoTime();
+	private final List<Sample> samples = new ArrayList<Sample>();
+
+	/**
+	 * The measurements of one target
+	 */
+	public class Sample {
+		final String name;
+		final String[] dependencies;
+		final Thread thread = Thread.currentThread();
+		final long wallStart = System.nanoTime(), cpuStart = cpuTime(), allocStart = allocated();
+		long wall, cpu, alloc;
+
+		Sample(BuildTarget target) {
+			this.name = target.name();
+			this.dependencies = target.dependencies();
+		}
+
+		/**
+		 * Completes the measurements; must be called on the thread that started the sample
+		 */
+		public void finished() {
+			wall = System.nanoTime() - wallStart;
+			cpu = cpuTime() - cpuStart;
+			alloc = allocated() - allocStart;
+			synchronized (samples) {
+				samples.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Starts measuring a target on the current thread
+	 * @param target the target
+	 * @return the sample, which must be finished when the target has executed
+	 */
+	public Sample start(BuildTarget target) {
+		return new Sample(target);
+	}
+
+	private static long cpuTime() {
+		return threads.isCurrentThreadCpuTimeSupported()? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocated() {
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private List<Sample> samples() {
+		synchronized (samples) {
+			return new ArrayList<Sample>(samples);
+		}
+	}
+
+	/**
+	 * Finds the chain of dependent targets with the greatest total wall time
+	 * @return the target names, dependencies first
+	 */
+	public List<String> criticalPath() {
+		Map<String, Sample> byName = new HashMap<String, Sample>();
+		for (Sample sample : samples()) byName.put(sample.name, sample);
+
+		Map<String, Long> cost = new HashMap<String, Long>();
+		Map<String, String> via = new HashMap<String, String>();
+		String end = null;
+		for (Sample sample : samples()) {
+			if (cost(sample, byName, cost, via) > (end == null? -1 : cost.get(end))) end = sample.name;
+		}
+
+		LinkedList<String> path = new LinkedList<String>();
+		for (String name = end; name != null; name = via.get(name)) path.addFirst(name);
+		return path;
+	}
+
+	private long cost(Sample sample, Map<String, Sample> byName, Map<String, Long> cost, Map<String, String> via) {
+		Long known = cost.get(sample.name);
+		if (known != null) return known;
+
+		long longest = 0;
+		for (String pre : sample.dependencies) {
+			Sample dep = byName.get(pre);
+			if (dep != null) {
+				long c = cost(dep, byName, cost, via);
+				if (c > longest) {
+					longest = c;
+					via.put(sample.name, pre);
+				}
+			}
+		}
+		cost.put(sample.name, longest + sample.wall);
+		return longest + sample.wall;
+	}
+
+	/**
+	 * Logs the targets in order of decreasing wall time, then the critical path
+	 * @param log the logger
+	 */
+	public void report(Logger log) {
+		List<Sample> sorted = samples();
+		if (sorted.isEmpty()) {
+			log.log("No targets were executed");
+			return;
+		}
+		Collections.sort(sorted, new Comparator<Sample>() {
+			public int compare(Sample a, Sample b) {
+				return Long.compare(b.wall, a.wall);
+			}
+		});
+
+		int width = 6;
+		for (Sample sample : sorted) width = Math.max(width, sample.name.length());
+		log.log(String.format("  %-" + width + "s %10s %10s %12s", "Target", "Wall ms", "CPU ms", "Allocated"));
+		for (Sample sample : sorted) {
+			log.log(String.format("  %-" + width + "s %10d %10d %10.1fMB",
+					sample.name, sample.wall / 1000000, sample.cpu / 1000000, sample.alloc / (1024.0 * 1024)));
+		}
+
+		long total = 0;
+		Map<String, Sample> byName = new HashMap<String, Sample>();
+		for (Sample sample : sorted) byName.put(sample.name, sample);
+		List<String> path = criticalPath();
+		for (String name : path) total += byName.get(name).wall;
+		StringBuilder sb = new StringBuilder();
+		for (String name : path) sb.append(sb.length() == 0? "" : " -> ").append(name);
+		log.log("Critical path (" + total / 1000000 + " ms): " + sb);
+	}
+
+	/**
+	 * Writes the samples as a Chrome trace-event file,
+	 * with a complete event for each target on the thread that executed it
+	 * @param file the trace file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeTrace(File file) throws IOException {
+		if (file.getParentFile() != null) file.getParentFile().mkdirs();
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			out.write("{\"traceEvents\":[\n");
+			Map<Long, String> names = new HashMap<Long, String>();
+			String separator = "";
+			for (Sample sample : samples()) {
+				names.put(sample.thread.getId(), sample.thread.getName());
+				StringBuilder deps = new StringBuilder();
+				for (String pre : sample.dependencies) {
+					deps.append(deps.length() == 0? "" : ",").append(quote(pre));
+				}
+				out.write(String.format("%s{\"name\":%s,\"cat\":\"target\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,"
+						+ "\"ts\":%d,\"dur\":%d,\"args\":{\"cpu_us\":%d,\"allocated_bytes\":%d,\"dependencies\":[%s]}}",
+						separator, quote(sample.name), sample.thread.getId(),
+						(sample.wallStart - start) / 1000, sample.wall / 1000, sample.cpu / 1000, sample.alloc, deps));
+				separator = ",\n";
+			}
+			for (Map.Entry<Long, String> thread : names.entrySet()) {
+				out.write(String.format("%s{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":%s}}",
+						separator, thread.getKey(), quote(thread.getValue())));
+				separator = ",\n";
+			}
+			out.write("\n]}\n");
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String quote(String text) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : text.toCharArray()) {
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < ' ') {
+				sb.append(String.format("\\u%04x", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
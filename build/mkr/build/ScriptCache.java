@@ -0,0 +1,161 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import mkr.Dir;
+
+/**
+ * Compiles build scripts in-process and caches the compiled classes.
+ * <p>
+ * The cache is keyed by a hash of the Java sources in the script directory,
+ * the classpath, the size and modification time of each jar or class file on it, and the Java version,
+ * so a script is only compiled again when one of those changes.
+ *
+ * @author gilesjb
+ */
+public class ScriptCache {
+
+	/**
+	 * The path of the class cache, relative to the script directory
+	 */
+	public static final String CLASSES = ".mkr/classes";
+
+	private final Dir scripts, cache;
+	private final String classpath;
+
+	/**
+	 * Creates a cache for the scripts in a directory
+	 *
+	 * @param scripts the directory containing the build script sources
+	 * @param classpath the classpath the scripts are compiled against
+	 */
+	public ScriptCache(File scripts, String classpath) {
+		this.scripts = Dir.valueOf(scripts);
+		this.cache = this.scripts.subDir(CLASSES);
+		this.classpath = classpath;
+	}
+
+	/**
+	 * Gets the directory containing the compiled classes of a script,
+	 * compiling the script first if the cache does not already contain it.
+	 *
+	 * @param name the fully-qualified class name of the script
+	 * @return the class directory
+	 * @throws IOException if the sources cannot be read or the cache cannot be written
+	 * @throws IllegalArgumentException if compilation fails
+	 */
+	public Dir classes(String name) throws IOException, IllegalArgumentException {
+		Dir classes = cache.subDir(name + '-' + key());
+		if (!classes.isDirectory()) {
+			compile(name, classes);
+		}
+		return classes;
+	}
+
+	/**
+	 * Creates a class loader for a script,
+	 * compiling the script first if the cache does not already contain it.
+	 *
+	 * @param name the fully-qualified class name of the script
+	 * @param parent the parent class loader, which must be able to load the mkr classes
+	 * @return a new class loader
+	 * @throws IOException if the sources cannot be read or the cache cannot be written
+	 * @throws IllegalArgumentException if compilation fails
+	 */
+	public ClassLoader classLoader(String name, ClassLoader parent) throws IOException, IllegalArgumentException {
+		return new URLClassLoader(new URL[] {classes(name).toURI().toURL()}, parent);
+	}
+
+	private String key() throws IOException {
+		MessageDigest digest = Fingerprints.digest();
+		Fingerprints.update(digest, System.getProperty("java.version"));
+		Fingerprints.update(digest, classpath);
+		String own = scripts.file(".mkr").getAbsolutePath() + File.separator;
+		for (String entry : classpath.split(File.pathSeparator)) {
+			File file = new File(entry);
+			if (file.isDirectory()) {
+				List<File> classes = Dir.valueOf(file).matching("**/*.class");
+				Collections.sort(classes);
+				for (File c : classes) {
+					if (!c.getAbsolutePath().startsWith(own)) stamp(digest, c);
+				}
+			} else {
+				stamp(digest, file);
+			}
+		}
+		for (File source : sources()) {
+			Fingerprints.update(digest, source.getPath());
+			Fingerprints.update(digest, source);
+		}
+		return Fingerprints.hex(digest.digest());
+	}
+
+	private static void stamp(MessageDigest digest, File file) {
+		Fingerprints.update(digest, file.getPath() + " " + file.length() + " " + file.lastModified());
+	}
+
+	private List<File> sources() {
+		List<File> sources = scripts.matching("**/*.java");
+		Collections.sort(sources);
+		return sources;
+	}
+
+	private void compile(String name, Dir classes) throws IOException {
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+		if (javac == null) {
+			throw new IllegalStateException("No Java compiler available, mkr must be run with a JDK");
+		}
+
+		Dir temp = cache.subDir(classes.getName() + ".tmp" + System.nanoTime());
+		temp.mkdirs();
+		StandardJavaFileManager files = javac.getStandardFileManager(null, null, null);
+		try {
+			List<String> options = Arrays.asList(
+					"-d", temp.getPath(),
+					"-cp", classpath,
+					"-sourcepath", scripts.getPath(),
+					"-proc:none", "-nowarn");
+			File source = scripts.file(name.replace('.', File.separatorChar) + ".java");
+			if (!javac.getTask(null, files, null, options, null, files.getJavaFileObjects(source)).call()) {
+				temp.deleteAll();
+				throw new IllegalArgumentException("Compilation failed: " + source);
+			}
+		} finally {
+			files.close();
+		}
+
+		for (File old : cache.listFiles()) {
+			if (old.getName().startsWith(name + '-') && !old.getName().contains(".tmp")) Dir.valueOf(old).deleteAll();
+		}
+		if (!temp.renameTo(classes) && !classes.isDirectory()) {
+			throw new IOException("Could not create class cache: " + classes);
+		}
+		if (temp.exists()) temp.deleteAll();
+	}
+}
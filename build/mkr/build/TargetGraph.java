@@ -0,0 +1,249 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import mkr.build.controller.BuildTarget;
+
+/**
+ * The dependency graph of a target and all the targets it depends on.
+ * <p>
+ * Targets are ordered as they would be by a depth-first traversal of the dependencies,
+ * so a single-threaded build runs them in the same order as a recursive build.
+ * A multi-threaded build starts each target as soon as all of its dependencies have finished,
+ * preferring targets that come earlier in that order.
+ *
+ * @author gilesjb
+ */
+public class TargetGraph {
+
+	/**
+	 * The action performed for each target in the graph
+	 */
+	public interface Action {
+		void run(BuildTarget target);
+	}
+
+	@SuppressWarnings("serial")
+	public static class CycleException extends RuntimeException {
+		CycleException(List<String> path) {
+			super("Dependency cycle: " + join(path, " -> "));
+		}
+	}
+
+	private static class Node {
+		final BuildTarget target;
+		final List<Node> dependents = new ArrayList<Node>();
+		int index, waiting;
+
+		Node(BuildTarget target) {
+			this.target = target;
+		}
+	}
+
+	private final Map<String, BuildTarget> targets;
+	private final Collection<String> excluded;
+	private final Map<String, Node> nodes = new LinkedHashMap<String, Node>();
+	private final List<Node> order = new ArrayList<Node>();
+
+	/**
+	 * Creates the graph for a target
+	 *
+	 * @param targets all the targets of the build, by name
+	 * @param root the name of the target to build
+	 * @param excluded names of dependencies that are not to be built,
+	 * usually because they have already been built
+	 * @throws CycleException if the dependencies of root contain a cycle
+	 */
+	public TargetGraph(Map<String, BuildTarget> targets, String root, Collection<String> excluded) throws CycleException {
+		this.targets = targets;
+		this.excluded = excluded;
+		visit(root);
+	}
+
+	/**
+	 * A target whose dependencies are being visited
+	 */
+	private static class Frame {
+		final String name;
+		final Node node;
+		final String[] dependencies;
+		int next = 0;
+
+		Frame(String name, Node node) {
+			this.name = name;
+			this.node = node;
+			this.dependencies = node.target.dependencies();
+		}
+	}
+
+	/**
+	 * Adds a target and its dependencies to the graph in depth-first post-order.
+	 * The path being visited is kept on a list rather than the call stack,
+	 * so long chains of dependencies cannot overflow the stack
+	 */
+	private void visit(String root) {
+		LinkedList<Frame> path = new LinkedList<Frame>();
+		path.add(enter(root));
+		while (!path.isEmpty()) {
+			Frame frame = path.getLast();
+			if (frame.next == frame.dependencies.length) {
+				frame.node.index = order.size();
+				order.add(frame.node);
+				path.removeLast();
+				continue;
+			}
+
+			String pre = frame.dependencies[frame.next++];
+			if (excluded.contains(pre)) continue;
+			Node node = nodes.get(pre);
+			if (node == null) {
+				Frame next = enter(pre);
+				next.node.dependents.add(frame.node);
+				path.addLast(next);
+			} else if (node.index < 0) {
+				List<String> cycle = new ArrayList<String>();
+				boolean found = false;
+				for (Frame visiting : path) {
+					found |= visiting.name.equals(pre);
+					if (found) cycle.add(visiting.name);
+				}
+				cycle.add(pre);
+				throw new CycleException(cycle);
+			} else {
+				node.dependents.add(frame.node);
+			}
+		}
+	}
+
+	private Frame enter(String name) {
+		Node node = new Node(targets.get(name));
+		node.index = -1;
+		nodes.put(name, node);
+		return new Frame(name, node);
+	}
+
+	/**
+	 * Gets the names of the targets in the graph
+	 * @return target names in build order
+	 */
+	public List<String> names() {
+		List<String> names = new ArrayList<String>(order.size());
+		for (Node node : order) names.add(node.target.name());
+		return names;
+	}
+
+	/**
+	 * Runs an action for every target in the graph,
+	 * never running a target's action until those of all its dependencies have completed.
+	 * <p>
+	 * If an action fails no further actions are started,
+	 * and the first failure is rethrown once the running actions have finished.
+	 *
+	 * @param jobs the maximum number of actions to run at the same time.
+	 * If this is 1 all actions are run on the calling thread
+	 * @param action the action to run
+	 * @throws InterruptedException if the calling thread is interrupted while waiting for actions
+	 */
+	public void execute(int jobs, final Action action) throws InterruptedException {
+		if (jobs <= 1) {
+			for (Node node : order) action.run(node.target);
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(jobs, new ThreadFactory() {
+			int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mkr-job-" + ++count);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		CompletionService<Node> done = new ExecutorCompletionService<Node>(pool);
+		PriorityQueue<Node> ready = new PriorityQueue<Node>(order.size(), new Comparator<Node>() {
+			public int compare(Node a, Node b) {
+				return a.index - b.index;
+			}
+		});
+		for (Node node : order) node.waiting = 0;
+		for (Node node : order) {
+			for (Node next : node.dependents) next.waiting++;
+		}
+		for (Node node : order) {
+			if (node.waiting == 0) ready.add(node);
+		}
+
+		Throwable failure = null;
+		int running = 0;
+		try {
+			while (true) {
+				while (failure == null && running < jobs && !ready.isEmpty()) {
+					final Node node = ready.remove();
+					done.submit(new Runnable() {
+						public void run() {
+							action.run(node.target);
+						}
+					}, node);
+					running++;
+				}
+				if (running == 0) break;
+
+				try {
+					running--;
+					for (Node next : done.take().get().dependents) {
+						if (--next.waiting == 0) ready.add(next);
+					}
+				} catch (ExecutionException e) {
+					if (failure == null) failure = e.getCause();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+		if (failure instanceof Error) throw (Error) failure;
+		if (failure != null) throw new RuntimeException(failure);
+	}
+
+	private static String join(List<String> items, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for (String item : items) {
+			if (sb.length() > 0) sb.append(separator);
+			sb.append(item);
+		}
+		return sb.toString();
+	}
+
+	@Override public String toString() {
+		return join(names(), ", ");
+	}
+}
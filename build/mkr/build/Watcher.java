@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2009 Giles Burgess
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package mkr.build;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches for changes to the files matched by a set of file specs,
+ * such as those declared by {@link mkr.MethodTargetBuild.Inputs}.
+ * <p>
+ * Directories are registered as specs are added, so changes made while a build is running
+ * are reported by the next call to {@link #await()}.
+ * A pattern or directory is watched with everything beneath it,
+ * and a plain file is watched through its own directory without descending into it.
+ *
+ * @author gilesjb
+ */
+public class Watcher {
+
+	/**
+	 * How long, in milliseconds, the files must stay unchanged before a change is reported
+	 */
+	public static final long QUIET = 100;
+
+	private final WatchService service;
+	private final Set<String> specs = new HashSet<String>();
+	private final Set<File> roots = new TreeSet<File>();
+	private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+	private final Set<Path> trees = new HashSet<Path>();
+	private final Map<Path, Set<Path>> files = new HashMap<Path, Set<Path>>();
+
+	/**
+	 * Creates a watcher with nothing to watch
+	 * @throws IOException if the file system cannot be watched
+	 */
+	public Watcher() throws IOException {
+		this.service = FileSystems.getDefault().newWatchService();
+	}
+
+	/**
+	 * Starts watching the files matched by some file specs.
+	 * A pattern is watched from the directory before its first wildcard, if that directory exists
+	 * @param specs paths of files, directories, or Ant-style patterns
+	 * @return this Watcher
+	 * @throws IOException if a directory cannot be watched
+	 */
+	public synchronized Watcher add(Collection<String> specs) throws IOException {
+		for (String spec : specs) {
+			spec = spec.trim();
+			if (!this.specs.add(spec)) continue;
+			int glob = Fingerprints.glob(spec);
+			File root;
+			if (glob < 0) {
+				root = new File(spec);
+			} else {
+				int slash = spec.lastIndexOf('/', glob);
+				root = new File(slash < 0? "." : spec.substring(0, slash));
+			}
+			if (root.isDirectory()) {
+				roots.add(root);
+				registerTree(path(root));
+			} else if (glob < 0) {
+				Path file = path(root);
+				Path dir = file.getParent();
+				if (dir == null || !Files.isDirectory(dir)) continue;
+				roots.add(root);
+				register(dir);
+				if (!files.containsKey(dir)) files.put(dir, new HashSet<Path>());
+				files.get(dir).add(file);
+			}
+		}
+		return this;
+	}
+
+	private static Path path(File file) {
+		return file.toPath().toAbsolutePath().normalize();
+	}
+
+	private void register(Path dir) throws IOException {
+		keys.put(dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+	}
+
+	private void registerTree(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException {
+				if (trees.add(dir)) register(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Checks whether there is anything to watch
+	 * @return true if none of the file specs had an existing directory
+	 */
+	public synchronized boolean isEmpty() {
+		return roots.isEmpty();
+	}
+
+	/**
+	 * Blocks until a watched file is created, modified or deleted,
+	 * then until no more changes have happened for {@link #QUIET} milliseconds.
+	 * Returns at once if there have been changes since the last call
+	 *
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		while (!handle(service.take()));
+		for (WatchKey key = service.poll(QUIET, TimeUnit.MILLISECONDS); key != null;
+				key = service.poll(QUIET, TimeUnit.MILLISECONDS)) {
+			handle(key);
+		}
+	}
+
+	/**
+	 * Reads the events of a key, registering new directories beneath watched trees
+	 * @return true if an event concerned a watched file
+	 */
+	private synchronized boolean handle(WatchKey key) {
+		Path dir = keys.get(key);
+		boolean changed = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				changed = true;
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if (trees.contains(dir)) {
+				changed = true;
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+					try {
+						registerTree(path);
+					} catch (IOException e) {
+						// deleted again before it could be registered
+					}
+				}
+			} else if (files.containsKey(dir) && files.get(dir).contains(path)) {
+				changed = true;
+			}
+		}
+		if (!key.reset()) {
+			keys.remove(key);
+			trees.remove(dir);
+		}
+		return changed;
+	}
+
+	/**
+	 * Stops watching
+	 * @throws IOException if the watch service cannot be closed
+	 */
+	public void close() throws IOException {
+		service.close();
+	}
+
+	@Override public synchronized String toString() {
+		return roots.toString();
+	}
+}
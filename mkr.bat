@@ -54,6 +54,11 @@ exit/b 1
 set DEFS=-Dmake.java.dir=%DIR%
 set CP=%DIR%;%DIR%/*;%ANT_JAR%;%TOOLS%
 
+if not exist %DIR%\mkr-*.jar goto compile
+java -cp %CP% %DEFS% mkr.build.Launcher --script %CLASS% %ARGS%
+goto end
+
+:compile
 javac -cp %CP% %DIR%/%FILE%.java
 java -cp %CP% %DEFS% %CLASS% %ARGS%
 del/s %DIR%\*.class >nul